@@ -1,6 +1,15 @@
 package nlp.assignments;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import nlp.io.PennTreebankReader;
 import nlp.ling.Tree;
@@ -27,6 +36,9 @@ public class PCFGParserTester {
 		int maxTrainLength = 1000;
 		int maxTestLength = 40;
 		boolean multiTest = false;
+		boolean arrayChart = false;
+		int numThreads = 1;
+		int sweepThreads = 1;
 
 		// Update defaults using command line specifications
 		if (argMap.containsKey("-path")) {
@@ -57,18 +69,35 @@ public class PCFGParserTester {
 		}
 		if (argMap.containsKey("-multitest"))
 			multiTest = true;
+		if (argMap.containsKey("-threads")) {
+			numThreads = Integer.parseInt(argMap.get("-threads"));
+		}
+		// seed pairs of -multitest trained at the same time
+		if (argMap.containsKey("-sweepThreads")) {
+			sweepThreads = Integer.parseInt(argMap.get("-sweepThreads"));
+		}
+		// all options of the array chart engine imply using it
+		if (ParserOptions.hasArrayChartOption(argMap))
+			arrayChart = true;
 
-		System.out.print("Loading training trees (sections 2-21) ... ");
-		List<Tree<String>> trainTrees = readTrees(basePath, 200, 2199,
-				maxTrainLength);
-		System.out.println("done. (" + trainTrees.size() + " trees)");
+		// a saved model needs no training trees
+		String loadModel = argMap.get("-loadModel");
+		List<Tree<String>> trainTrees = null;
+		if (loadModel == null) {
+			System.out.print("Loading training trees (sections 2-21) ... ");
+			trainTrees = readTrees(basePath, 200, 2199, maxTrainLength,
+					numThreads);
+			System.out.println("done. (" + trainTrees.size() + " trees)");
+		}
 		List<Tree<String>> testTrees = null;
 		if (testMode.equalsIgnoreCase("validate")) {
 			System.out.print("Loading validation trees (section 22) ... ");
-			testTrees = readTrees(basePath, 2200, 2299, maxTestLength);
+			testTrees = readTrees(basePath, 2200, 2299, maxTestLength,
+					numThreads);
 		} else {
 			System.out.print("Loading test trees (section 23) ... ");
-			testTrees = readTrees(basePath, 2300, 2319, maxTestLength);
+			testTrees = readTrees(basePath, 2300, 2319, maxTestLength,
+					numThreads);
 		}
 		System.out.println("done. (" + testTrees.size() + " trees)");
 
@@ -76,25 +105,17 @@ public class PCFGParserTester {
 
 		Parser parser;
 		String model = argMap.get("-model");
-		int testCase = 0;
 		if (multiTest) {
 			// only for split merge
-			for (int i = 0; i < possibleSeeds1.length; i++) {
-				for (int j = 0; j < possibleSeeds2.length; j++) {
-					long[] seeds = new long[] { possibleSeeds1[i],
-							possibleSeeds2[j] };
-					System.out.println("Test Case : " + testCase++);
-					EMGrammarTrainer.randomSeeds = seeds;
-					StringBuilder sb = new StringBuilder();
-					sb.append("Random seeds is ");
-					for (int k = 0; k < seeds.length; k++)
-						sb.append("\t" + seeds[k]);
-					System.out.println(sb.toString());
-					parser = new CKYParserTester(trainTrees);
-					testParser(parser, testTrees, verbose);
-					System.out.println();
-				}
-			}
+			runSeedSweep(trainTrees, testTrees, argMap, arrayChart, numThreads,
+					sweepThreads);
+		} else if (loadModel != null) {
+			parser = ParserOptions.loadArrayParser(loadModel, argMap,
+					"PCFGParserTester");
+			parser = ParserOptions.makeFallbackParser(parser, trainTrees,
+					argMap);
+			parser = ParserOptions.makeCachingParser(parser, argMap);
+			testParser(parser, testTrees, verbose, numThreads);
 		} else {
 			if (model.equalsIgnoreCase("CKY") || model.equalsIgnoreCase("CYK")) {
 				parser = new nlp.parser.CKYParser(trainTrees);
@@ -102,38 +123,227 @@ public class PCFGParserTester {
 				parser = new nlp.parser.CKYParserMarkov(trainTrees);
 
 			} else if (model.equalsIgnoreCase("tester")) {
-				parser = new nlp.parser.CKYParserTester(trainTrees);
+				parser = new nlp.parser.CKYParserTester(trainTrees,
+						makeSettings(argMap, numThreads));
 			} else {
 				parser = new nlp.parser.BaselineParser(trainTrees);
 			}
-			testParser(parser, testTrees, verbose);
+			if (argMap.containsKey("-saveModel") && parser instanceof CKYParser)
+				saveModel((CKYParser) parser, argMap.get("-saveModel"));
+			if (arrayChart && parser instanceof CKYParser)
+				parser = ParserOptions.makeArrayParser((CKYParser) parser,
+						argMap, "PCFGParserTester");
+			parser = ParserOptions.makeFallbackParser(parser, trainTrees,
+					argMap);
+			parser = ParserOptions.makeCachingParser(parser, argMap);
+			testParser(parser, testTrees, verbose, numThreads);
 		}
 	}
 
+	/**
+	 * Train and evaluate the split-merge model once for every pair of seeds,
+	 * sweepThreads pairs at a time. The training and test trees are shared
+	 * and only read. Prints a table of the results in the order of the pairs.
+	 */
+	private static void runSeedSweep(final List<Tree<String>> trainTrees,
+			final List<Tree<String>> testTrees,
+			final Map<String, String> argMap, final boolean arrayChart,
+			final int numThreads, int sweepThreads) {
+		List<long[]> cases = new ArrayList<long[]>();
+		for (int i = 0; i < possibleSeeds1.length; i++) {
+			for (int j = 0; j < possibleSeeds2.length; j++) {
+				cases.add(new long[] { possibleSeeds1[i], possibleSeeds2[j] });
+			}
+		}
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int testCase = 0; testCase < cases.size(); testCase++) {
+			final int id = testCase;
+			final long[] seeds = cases.get(testCase);
+			tasks.add(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					return runSeedCase(id, seeds, trainTrees, testTrees, argMap,
+							arrayChart, numThreads);
+				}
+			});
+		}
+		ExecutorService sweep = Executors.newFixedThreadPool(sweepThreads);
+		List<double[]> results = new ArrayList<double[]>();
+		try {
+			for (Future<double[]> future : sweep.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			sweep.shutdown();
+		}
+		System.out.println();
+		System.out.println("Case\tSeeds\tF1\tEX\tTrain (s)");
+		for (int testCase = 0; testCase < cases.size(); testCase++) {
+			long[] seeds = cases.get(testCase);
+			double[] result = results.get(testCase);
+			System.out.println(testCase + "\t" + seeds[0] + "," + seeds[1]
+					+ "\t" + ((int) (result[0] * 10000)) / 100.0 + "\t"
+					+ ((int) (result[1] * 10000)) / 100.0 + "\t"
+					+ ((int) (result[2] / 100)) / 10.0);
+		}
+	}
+
+	/**
+	 * Train one model of the seed sweep and evaluate it without printing
+	 * every sentence. Returns its F1, exact match and training time in ms.
+	 */
+	private static double[] runSeedCase(int testCase, long[] seeds,
+			List<Tree<String>> trainTrees, List<Tree<String>> testTrees,
+			Map<String, String> argMap, boolean arrayChart, int numThreads) {
+		System.out.println("Test Case : " + testCase + ", random seeds "
+				+ seeds[0] + " " + seeds[1]);
+		EMGrammarTrainer.Settings settings = makeSettings(argMap, numThreads);
+		settings.randomSeeds = seeds;
+		// keep the checkpoints of the cases apart
+		if (settings.checkpointDirectory != null)
+			settings.checkpointDirectory = new File(
+					settings.checkpointDirectory, "seeds-" + seeds[0] + "-"
+							+ seeds[1]).getPath();
+		long start = System.currentTimeMillis();
+		Parser parser = new CKYParserTester(trainTrees, settings);
+		long trainTime = System.currentTimeMillis() - start;
+		// cases run at the same time, so each registers its own stats
+		ParseStats stats = null;
+		if (arrayChart) {
+			ArrayCKYParser arrayParser = ParserOptions.makeArrayParser(
+					(CKYParser) parser, argMap, "PCFGParserTester-case"
+							+ testCase);
+			stats = arrayParser.getStats();
+			parser = arrayParser;
+		}
+		PrintWriter quiet = new PrintWriter(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+		EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval;
+		try {
+			eval = evaluate(parser, testTrees, false, numThreads, quiet);
+		} finally {
+			if (stats != null) {
+				stats.stopDump();
+				stats.unregister();
+			}
+		}
+		System.out.println("Test Case : " + testCase + " done, F1 "
+				+ ((int) (eval.getF1() * 10000)) / 100.0);
+		if (stats != null)
+			System.out.print("Test Case : " + testCase + " parse stats:\n"
+					+ stats.getReport());
+		return new double[] { eval.getF1(), eval.getExactMatch(), trainTime };
+	}
+
+	/**
+	 * The split-merge trainer options given on the command line: -threads
+	 * for the E-step, -checkpoint dir, -checkpointInterval n and -resume file.
+	 */
+	private static EMGrammarTrainer.Settings makeSettings(
+			Map<String, String> argMap, int numThreads) {
+		EMGrammarTrainer.Settings settings = new EMGrammarTrainer.Settings();
+		settings.numThreads = numThreads;
+		if (argMap.containsKey("-checkpoint"))
+			settings.checkpointDirectory = argMap.get("-checkpoint");
+		if (argMap.containsKey("-checkpointInterval"))
+			settings.checkpointInterval = Integer.parseInt(argMap
+					.get("-checkpointInterval"));
+		if (argMap.containsKey("-resume"))
+			settings.resumeCheckpoint = argMap.get("-resume");
+		return settings;
+	}
+
+	private static void saveModel(CKYParser model, String fileName) {
+		System.out.print("Saving model to " + fileName + " ... ");
+		try {
+			new ModelSnapshot(model).write(fileName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("done.");
+	}
+
 	private static void testParser(Parser parser, List<Tree<String>> testTrees,
-			boolean verbose) {
+			boolean verbose, int numThreads) {
+		PrintWriter out = new PrintWriter(System.out, true);
+		EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = evaluate(
+				parser, testTrees, verbose, numThreads, out);
+		eval.display(true, out);
+		if (parser instanceof CachingParser) {
+			CachingParser cachingParser = (CachingParser) parser;
+			System.out.println("Parse cache: " + cachingParser.getCache());
+			parser = cachingParser.getParser();
+		}
+		if (parser instanceof FallbackParser) {
+			FallbackParser fallbackParser = (FallbackParser) parser;
+			System.out.println("Parse budget: " + fallbackParser);
+			parser = fallbackParser.getParser();
+		}
+		if (parser instanceof AgendaParser) {
+			System.out.println("Agenda items popped: "
+					+ ((AgendaParser) parser).getPoppedItems());
+		} else if (parser instanceof ArrayCKYParser) {
+			ArrayCKYParser arrayParser = (ArrayCKYParser) parser;
+			System.out.println("Chart edges kept: "
+					+ arrayParser.getKeptEdges() + " pruned: "
+					+ arrayParser.getPrunedEdges());
+		}
+		if (parser instanceof ArrayCKYParser
+				&& ((ArrayCKYParser) parser).getStats() != null) {
+			ParseStats stats = ((ArrayCKYParser) parser).getStats();
+			stats.stopDump();
+			System.out.print("Parse stats:\n" + stats.getReport());
+		}
+	}
+
+	/**
+	 * Parse the test sentences and score the parses, printing the score of
+	 * every sentence to out.
+	 */
+	private static EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> evaluate(
+			Parser parser, List<Tree<String>> testTrees, boolean verbose,
+			int numThreads, PrintWriter out) {
 		EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(
 				Collections.singleton("ROOT"),
 				new HashSet<String>(Arrays.asList(new String[] { "''", "``",
 						".", ":", "," })));
-		for (Tree<String> testTree : testTrees) {
-			List<String> testSentence = testTree.getYield();
-			Tree<String> guessedTree = parser.getBestParse(testSentence);
+		List<Tree<String>> guessedTrees = null;
+		if (numThreads > 1) {
+			List<List<String>> testSentences = new ArrayList<List<String>>();
+			for (Tree<String> testTree : testTrees) {
+				testSentences.add(testTree.getYield());
+			}
+			BatchParser batchParser = new BatchParser(parser, numThreads);
+			guessedTrees = batchParser.getBestParses(testSentences);
+			batchParser.shutdown();
+		}
+		for (int n = 0; n < testTrees.size(); n++) {
+			Tree<String> testTree = testTrees.get(n);
+			Tree<String> guessedTree = guessedTrees != null ? guessedTrees
+					.get(n) : parser.getBestParse(testTree.getYield());
 			if (verbose) {
 				System.out.println("Guess:\n"
 						+ Trees.PennTreeRenderer.render(guessedTree));
 				System.out.println("Gold:\n"
 						+ Trees.PennTreeRenderer.render(testTree));
 			}
-			eval.evaluate(guessedTree, testTree);
+			eval.evaluate(guessedTree, testTree, out);
 		}
-		eval.display(true);
+		return eval;
 	}
 
 	private static List<Tree<String>> readTrees(String basePath, int low,
-			int high, int maxLength) {
+			int high, int maxLength, int numThreads) {
 		Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath,
-				low, high);
+				low, high, numThreads);
 		// normalize trees
 		Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
 		List<Tree<String>> normalizedTreeList = new ArrayList<Tree<String>>();
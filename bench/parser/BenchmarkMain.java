@@ -0,0 +1,22 @@
+package nlp.parser;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the parser benchmarks, all of them or those whose names match the
+ * regular expression given as the first argument, e.g. "CKYParser" or
+ * "Lexicon.scoreTagging". bench/pom.xml builds them with the main sources
+ * into bench/target/benchmarks.jar, which also runs them through the JMH
+ * command line. Every benchmark builds its fixtures from BenchmarkTreebank,
+ * so no data is read.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "nlp\\.parser\\..*Benchmark";
+		Options options = new OptionsBuilder().include(include).build();
+		new Runner(options).run();
+	}
+}
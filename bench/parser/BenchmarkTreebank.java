@@ -0,0 +1,150 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nlp.ling.Tree;
+
+/**
+ * Synthetic Penn style trees for the benchmarks, so they run without the
+ * treebank. Trees come from a small hand written grammar of clauses, noun and
+ * prepositional phrases, joined by coordination, with words drawn from fixed
+ * lists. The same seed always gives the same trees, so numbers of different
+ * runs compare.
+ */
+public class BenchmarkTreebank {
+	static final String[][] WORDS = new String[][] {
+			{ "DT", "the", "a", "this", "every", "some" },
+			{ "JJ", "big", "old", "red", "quick", "strange", "new", "small" },
+			{ "NN", "dog", "cat", "market", "report", "city", "year", "price",
+					"company", "man", "idea", "table", "plan" },
+			{ "NNS", "dogs", "markets", "prices", "companies", "people",
+					"shares", "plans" },
+			{ "NNP", "Smith", "London", "Monday", "IBM", "Congress" },
+			{ "PRP", "he", "she", "it", "they" },
+			{ "VBD", "saw", "bought", "said", "made", "took", "sold" },
+			{ "VBZ", "sees", "buys", "says", "makes", "takes", "sells" },
+			{ "MD", "will", "could", "might" },
+			{ "VB", "see", "buy", "make", "take", "sell" },
+			{ "IN", "in", "on", "with", "for", "of", "from" },
+			{ "RB", "quickly", "also", "never", "still" },
+			{ "CC", "and", "but", "or" } };
+
+	Random random;
+
+	public BenchmarkTreebank(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * The given number of trees, of all lengths the grammar makes.
+	 */
+	public List<Tree<String>> getTrees(int numTrees) {
+		List<Tree<String>> trees = new ArrayList<Tree<String>>(numTrees);
+		for (int n = 0; n < numTrees; n++) {
+			trees.add(root(sentence(1 + random.nextInt(3))));
+		}
+		return trees;
+	}
+
+	/**
+	 * A tree of exactly the given number of words, found by sampling
+	 * sentences of about that many clauses.
+	 */
+	public Tree<String> getTree(int length) {
+		int clauses = Math.max(1, length / 7);
+		for (int attempt = 0; attempt < 100000; attempt++) {
+			Tree<String> tree = root(sentence(clauses));
+			if (tree.getYield().size() == length)
+				return tree;
+		}
+		throw new RuntimeException("No synthetic tree of length " + length);
+	}
+
+	private Tree<String> root(Tree<String> sentence) {
+		return new Tree<String>("ROOT", Collections.singletonList(sentence));
+	}
+
+	private Tree<String> sentence(int clauses) {
+		if (clauses == 1)
+			return node("S", nounPhrase(0), verbPhrase(0), tag("."));
+		List<Tree<String>> children = new ArrayList<Tree<String>>();
+		for (int c = 0; c < clauses; c++) {
+			if (c > 0)
+				children.add(c == clauses - 1 ? word("CC") : tag(","));
+			children.add(node("S", nounPhrase(0), verbPhrase(0)));
+		}
+		children.add(tag("."));
+		return new Tree<String>("S", children);
+	}
+
+	private Tree<String> nounPhrase(int depth) {
+		int choice = random.nextInt(depth < 2 ? 6 : 4);
+		switch (choice) {
+		case 0:
+			return node("NP", word("PRP"));
+		case 1:
+			return node("NP", word("NNP"));
+		case 2:
+			return node("NP", word("DT"), word("NN"));
+		case 3:
+			return node("NP", word("DT"), word("JJ"), word(random.nextBoolean() ? "NN"
+					: "NNS"));
+		case 4:
+			return node("NP", nounPhrase(depth + 1), prepositionalPhrase(depth + 1));
+		default:
+			return node("NP", nounPhrase(depth + 1), word("CC"),
+					nounPhrase(depth + 1));
+		}
+	}
+
+	private Tree<String> verbPhrase(int depth) {
+		switch (random.nextInt(5)) {
+		case 0:
+			return node("VP", word("VBZ"));
+		case 1:
+			return node("VP", word("VBD"), nounPhrase(depth + 1));
+		case 2:
+			return node("VP", word("VBD"), nounPhrase(depth + 1),
+					prepositionalPhrase(depth + 1));
+		case 3:
+			return node("VP", word("MD"), node("VP", word("VB"),
+					nounPhrase(depth + 1)));
+		default:
+			return node("VP", node("ADVP", word("RB")), word("VBZ"),
+					nounPhrase(depth + 1));
+		}
+	}
+
+	private Tree<String> prepositionalPhrase(int depth) {
+		return node("PP", word("IN"), nounPhrase(depth + 1));
+	}
+
+	private Tree<String> word(String tag) {
+		for (String[] words : WORDS) {
+			if (words[0].equals(tag))
+				return tag(tag, words[1 + random.nextInt(words.length - 1)]);
+		}
+		throw new RuntimeException("No words for tag " + tag);
+	}
+
+	private static Tree<String> tag(String punctuation) {
+		return tag(punctuation, punctuation);
+	}
+
+	private static Tree<String> tag(String tag, String word) {
+		return new Tree<String>(tag, Collections.singletonList(new Tree<String>(
+				word)));
+	}
+
+	@SafeVarargs
+	private static Tree<String> node(String label, Tree<String>... children) {
+		List<Tree<String>> list = new ArrayList<Tree<String>>(children.length);
+		for (Tree<String> child : children) {
+			list.add(child);
+		}
+		return new Tree<String>(label, list);
+	}
+}
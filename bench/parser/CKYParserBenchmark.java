@@ -0,0 +1,55 @@
+package nlp.parser;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nlp.ling.Tree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Viterbi parsing of one synthetic sentence per length, with the map based
+ * CKYParser and with the array chart engine on the same Markov model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CKYParserBenchmark {
+	@Param({ "10", "20", "40" })
+	int length;
+
+	CKYParser parser;
+	ArrayCKYParser arrayParser;
+	List<String> sentence;
+
+	@Setup
+	public void setUp() {
+		BenchmarkTreebank treebank = new BenchmarkTreebank(1);
+		parser = new CKYParserMarkov(treebank.getTrees(2000));
+		arrayParser = new ArrayCKYParser(parser);
+		sentence = treebank.getTree(length).getYield();
+	}
+
+	@Benchmark
+	public Tree<String> mapChart() {
+		return parser.getBestAnnotatedParse(sentence);
+	}
+
+	@Benchmark
+	public Tree<String> arrayChart() {
+		return arrayParser.getBestAnnotatedParse(sentence);
+	}
+}
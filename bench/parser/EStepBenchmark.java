@@ -0,0 +1,60 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nlp.ling.Tree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One serial EM E-step of the first split-merge cycle over 1000 synthetic
+ * trees: inside, outside and posterior counts, without the M-step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EStepBenchmark {
+	EMGrammarTrainer.GrammarTrainingHelper helper;
+	List<BinaryTree<String>> binaryTrees;
+
+	@Setup
+	public void setUp() {
+		// the annotation of CKYParserTester
+		TreeAnnotations.horizontal = 0;
+		TreeAnnotations.useparent = false;
+		List<Tree<String>> trees = new ArrayList<Tree<String>>();
+		for (Tree<String> tree : new BenchmarkTreebank(1).getTrees(1000)) {
+			trees.add(TreeAnnotations.annotateTreeMarkov(tree));
+		}
+		Grammar grammar = new Grammar.DefaultGrammarBuilder(trees, false)
+				.buildGrammar();
+		grammar.becomeFull();
+		SimpleLexicon lexicon = SimpleLexicon.createSimpleLexicon(trees);
+		GrammarSpliter spliter = new GrammarSpliter(grammar, lexicon,
+				new Random(3));
+		helper = new EMGrammarTrainer.GrammarTrainingHelper(
+				spliter.getNewGrammar(), spliter.getNewLexicon(), spliter,
+				grammar, lexicon, null);
+		binaryTrees = EMGrammarTrainer.buildBinaryTree(trees, spliter);
+	}
+
+	@Benchmark
+	public Object eStep() {
+		return helper.computePosteriors(binaryTrees);
+	}
+}
@@ -0,0 +1,78 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nlp.ling.Tree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Rule lookups of Grammar, as the map based parser makes them for every
+ * cell, and building the UnaryClosure of the grammar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrammarBenchmark {
+	Grammar grammar;
+	List<String> states;
+	List<BinaryRule> binaryRules;
+	List<UnaryRule> unaryRules;
+
+	@Setup
+	public void setUp() {
+		TreeAnnotations.horizontal = 100;
+		TreeAnnotations.useparent = true;
+		List<Tree<String>> annotatedTrees = new ArrayList<Tree<String>>();
+		for (Tree<String> tree : new BenchmarkTreebank(1).getTrees(2000)) {
+			annotatedTrees.add(TreeAnnotations.annotateTreeMarkov(tree));
+		}
+		grammar = new Grammar.DefaultGrammarBuilder(annotatedTrees)
+				.buildGrammar();
+		states = new ArrayList<String>(grammar.getStates());
+		binaryRules = grammar.getBinaryRules();
+		unaryRules = grammar.getUnaryRules();
+	}
+
+	@Benchmark
+	public UnaryClosure unaryClosure() {
+		return new UnaryClosure(grammar);
+	}
+
+	@Benchmark
+	public void rulesByChildAndParent(Blackhole blackhole) {
+		for (String state : states) {
+			blackhole.consume(grammar.getBinaryRulesByLeftChild(state));
+			blackhole.consume(grammar.getBinaryRulesByParent(state));
+			blackhole.consume(grammar.getUnaryRulesByParent(state));
+		}
+	}
+
+	@Benchmark
+	public double ruleScores() {
+		double sum = 0;
+		for (BinaryRule rule : binaryRules) {
+			sum += grammar.getBinaryScore(rule.getParent(),
+					rule.getLeftChild(), rule.getRightChild());
+		}
+		for (UnaryRule rule : unaryRules) {
+			sum += grammar.getUnaryScore(rule.getParent(), rule.getChild());
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,71 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tag scores of every word of a sentence, from Lexicon.scoreTagging for every
+ * tag and from the precomputed TagScoreTable. The sentence has one unknown
+ * word per known word, so both paths of the lexicon count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LexiconBenchmark {
+	Lexicon lexicon;
+	List<String> tags;
+	List<String> words;
+	int[] tagIds;
+	double[] tagScores;
+
+	@Setup
+	public void setUp() {
+		BenchmarkTreebank treebank = new BenchmarkTreebank(1);
+		lexicon = Lexicon.createLexicon(treebank.getTrees(2000));
+		tags = new ArrayList<String>(lexicon.getAllTags());
+		words = new ArrayList<String>();
+		for (String word : treebank.getTree(20).getYield()) {
+			words.add(word);
+			words.add(word + "-unseen");
+		}
+		TagScoreTable table = lexicon.getTagScoreTable();
+		tagIds = new int[table.getTags().length];
+		tagScores = new double[table.getTags().length];
+	}
+
+	@Benchmark
+	public double scoreTagging() {
+		double sum = 0;
+		for (String word : words) {
+			for (String tag : tags) {
+				sum += lexicon.scoreTagging(word, tag);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int tagScoreTable() {
+		TagScoreTable table = lexicon.getTagScoreTable();
+		int numTags = 0;
+		for (String word : words) {
+			numTags += table.getTagScores(word, tagIds, tagScores);
+		}
+		return numTags;
+	}
+}
@@ -0,0 +1,59 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nlp.ling.Tree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Markov binarization of 500 synthetic trees and its undoing, as done for
+ * every training tree and every parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeAnnotationsBenchmark {
+	List<Tree<String>> trees;
+	List<Tree<String>> annotatedTrees;
+
+	@Setup
+	public void setUp() {
+		TreeAnnotations.horizontal = 100;
+		TreeAnnotations.useparent = true;
+		trees = new BenchmarkTreebank(1).getTrees(500);
+		annotatedTrees = new ArrayList<Tree<String>>();
+		for (Tree<String> tree : trees) {
+			annotatedTrees.add(TreeAnnotations.annotateTreeMarkov(tree));
+		}
+	}
+
+	@Benchmark
+	public void annotateTreeMarkov(Blackhole blackhole) {
+		for (Tree<String> tree : trees) {
+			blackhole.consume(TreeAnnotations.annotateTreeMarkov(tree));
+		}
+	}
+
+	@Benchmark
+	public void unAnnotateTree(Blackhole blackhole) {
+		for (Tree<String> tree : annotatedTrees) {
+			blackhole.consume(TreeAnnotations.unAnnotateTree(tree));
+		}
+	}
+}
@@ -2,17 +2,34 @@ package nlp.io;
 
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.io.*;
 
 import nlp.ling.Tree;
 import nlp.ling.Trees;
 import nlp.util.ConcatenationIterator;
 
+/**
+ * Reads the trees of the .mrg files under a directory. The collections are
+ * lazy: files are only read when iterated, and iterating again reads them
+ * again. With more than one thread, files are parsed ahead of the iterator on
+ * a pool, at most two per thread, in file order or in the order they finish.
+ * The spliterator splits by file, so a parallel stream parses files
+ * concurrently. The number of trees is remembered from the first iteration
+ * that reaches the end, or counted by size() on the same threads as the
+ * iterators. Files that cannot be opened are skipped with a warning.
+ */
 public class PennTreebankReader {
 
   static class TreeCollection extends AbstractCollection<Tree<String>> {
 
     List<File> files;
+    int numThreads = 1;
+    boolean ordered = true;
+    volatile int size = -1;
 
     static class TreeIteratorIterator implements Iterator<Iterator<Tree<String>>> {
       Iterator<File> fileIterator;
@@ -35,10 +52,11 @@ public class PennTreebankReader {
       private void advance() {
         nextTreeIterator = null;
         while (nextTreeIterator == null && fileIterator.hasNext()) {
+          File file = fileIterator.next();
           try {
-            File file = fileIterator.next();
             nextTreeIterator = new Trees.PennTreeReader(new BufferedReader(new FileReader(file)));
           } catch (FileNotFoundException e) {
+            reportSkipped(file, e);
           }
         }
       }
@@ -49,16 +67,178 @@ public class PennTreebankReader {
       }
     }
 
+    /**
+     * Iterates the trees of the files one at a time, parsing as many files
+     * ahead of the consumer as the prefetch allows.
+     */
+    static class PrefetchIterator implements Iterator<Tree<String>> {
+      Iterator<File> fileIterator;
+      ExecutorService workers;
+      int prefetch;
+      // pending files in file order, or finishing order if not ordered
+      Queue<Future<List<Tree<String>>>> pending = new ArrayDeque<Future<List<Tree<String>>>>();
+      CompletionService<List<Tree<String>>> completed;
+      int outstanding;
+      Iterator<Tree<String>> currentIterator = Collections.<Tree<String>>emptyList().iterator();
+
+      public boolean hasNext() {
+        while (! currentIterator.hasNext()) {
+          fill();
+          if (outstanding == 0)
+            return false;
+          currentIterator = take().iterator();
+        }
+        return true;
+      }
+
+      public Tree<String> next() {
+        if (! hasNext())
+          throw new NoSuchElementException();
+        return currentIterator.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      private void fill() {
+        while (outstanding < prefetch && fileIterator.hasNext()) {
+          final File file = fileIterator.next();
+          Callable<List<Tree<String>>> task = new Callable<List<Tree<String>>>() {
+            public List<Tree<String>> call() {
+              return readFile(file);
+            }
+          };
+          if (completed != null)
+            completed.submit(task);
+          else
+            pending.add(workers.submit(task));
+          outstanding++;
+        }
+      }
+
+      private List<Tree<String>> take() {
+        outstanding--;
+        try {
+          Future<List<Tree<String>>> future = completed != null ? completed.take() : pending.remove();
+          return future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+
+      PrefetchIterator(List<File> files, ExecutorService workers, int prefetch, boolean ordered) {
+        this.fileIterator = files.iterator();
+        this.workers = workers;
+        this.prefetch = prefetch;
+        if (! ordered)
+          completed = new ExecutorCompletionService<List<Tree<String>>>(workers);
+      }
+    }
+
+    /**
+     * Splits by file: a split takes the first half of the files left, plus
+     * the rest of the file being read, so the order of the trees is kept.
+     */
+    static class TreeSpliterator implements Spliterator<Tree<String>> {
+      List<File> files;
+      int nextFile;
+      int endFile;
+      Iterator<Tree<String>> currentIterator;
+
+      TreeSpliterator(List<File> files, int nextFile, int endFile) {
+        this.files = files;
+        this.nextFile = nextFile;
+        this.endFile = endFile;
+      }
+
+      public boolean tryAdvance(Consumer<? super Tree<String>> action) {
+        while (currentIterator == null || ! currentIterator.hasNext()) {
+          if (nextFile >= endFile)
+            return false;
+          currentIterator = readFile(files.get(nextFile++)).iterator();
+        }
+        action.accept(currentIterator.next());
+        return true;
+      }
+
+      public Spliterator<Tree<String>> trySplit() {
+        if (endFile - nextFile < 2)
+          return null;
+        int middle = (nextFile + endFile) >>> 1;
+        TreeSpliterator prefix = new TreeSpliterator(files, nextFile, middle);
+        prefix.currentIterator = currentIterator;
+        currentIterator = null;
+        nextFile = middle;
+        return prefix;
+      }
+
+      // in files, the number of trees is not known before reading them
+      public long estimateSize() {
+        return endFile - nextFile;
+      }
+
+      public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+      }
+    }
+
+    /**
+     * Counts the trees it returns, and remembers the count as the size of the
+     * collection once it reaches the end.
+     */
+    class CountingIterator implements Iterator<Tree<String>> {
+      Iterator<Tree<String>> trees;
+      int count;
+
+      public boolean hasNext() {
+        boolean hasNext = trees.hasNext();
+        if (! hasNext)
+          size = count;
+        return hasNext;
+      }
+
+      public Tree<String> next() {
+        Tree<String> tree = trees.next();
+        count++;
+        return tree;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      CountingIterator(Iterator<Tree<String>> trees) {
+        this.trees = trees;
+      }
+    }
+
     public Iterator<Tree<String>> iterator() {
-      return new ConcatenationIterator<Tree<String>>(new TreeIteratorIterator(files));
+      Iterator<Tree<String>> trees;
+      if (numThreads <= 1)
+        trees = new ConcatenationIterator<Tree<String>>(new TreeIteratorIterator(files));
+      else
+        trees = new PrefetchIterator(files, getWorkers(numThreads), 2 * numThreads, ordered);
+      return size < 0 ? new CountingIterator(trees) : trees;
+    }
+
+    public Spliterator<Tree<String>> spliterator() {
+      return new TreeSpliterator(files, 0, files.size());
+    }
+
+    public Stream<Tree<String>> stream(boolean parallel) {
+      return StreamSupport.stream(spliterator(), parallel);
     }
 
     public int size() {
-      int size = 0;
-      Iterator i = iterator();
-      while (i.hasNext()) {
-        size++;
-        i.next();
+      if (size < 0) {
+        // iterating to the end remembers the size
+        Iterator<Tree<String>> trees = iterator();
+        while (trees.hasNext())
+          trees.next();
       }
       return size;
     }
@@ -91,6 +271,58 @@ public class PennTreebankReader {
     }
   }
 
+  static List<Tree<String>> readFile(File file) {
+    List<Tree<String>> trees = new ArrayList<Tree<String>>();
+    Reader reader;
+    try {
+      reader = new BufferedReader(new FileReader(file));
+    } catch (FileNotFoundException e) {
+      reportSkipped(file, e);
+      return trees;
+    }
+    try {
+      Iterator<Tree<String>> treeIterator = new Trees.PennTreeReader(reader);
+      while (treeIterator.hasNext())
+        trees.add(treeIterator.next());
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {
+      }
+    }
+    return trees;
+  }
+
+  static void reportSkipped(File file, FileNotFoundException e) {
+    System.err.println("Skipping treebank file " + file + ": " + e.getMessage());
+  }
+
+  static ThreadPoolExecutor workers;
+
+  /**
+   * The pool parsing ahead of prefetching iterators, grown in place to the
+   * largest number of threads asked for, so iterators running on it keep
+   * working. Idle threads exit after a few seconds.
+   */
+  static synchronized ExecutorService getWorkers(int numThreads) {
+    if (workers == null) {
+      workers = new ThreadPoolExecutor(numThreads, numThreads, 5, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "treebank-reader");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      workers.allowCoreThreadTimeOut(true);
+    } else if (workers.getMaximumPoolSize() < numThreads) {
+      // the maximum first, it may never be below the core size
+      workers.setMaximumPoolSize(numThreads);
+      workers.setCorePoolSize(numThreads);
+    }
+    return workers;
+  }
+
   public static Collection<Tree<String>> readTrees(String path) {
     return readTrees(path, -1, Integer.MAX_VALUE);
   }
@@ -99,6 +331,36 @@ public class PennTreebankReader {
     return new TreeCollection(path, lowFileNum, highFileNumber);
   }
 
+  /**
+   * Trees whose iterators parse files ahead on numThreads threads, in file
+   * order.
+   */
+  public static Collection<Tree<String>> readTrees(String path, int lowFileNum, int highFileNumber, int numThreads) {
+    return readTrees(path, lowFileNum, highFileNumber, numThreads, true);
+  }
+
+  /**
+   * Trees whose iterators parse files ahead on numThreads threads. If not
+   * ordered, the trees of each file come as soon as it is parsed, which keeps
+   * all threads busy when file sizes vary; trees of one file stay together
+   * and in order.
+   */
+  public static Collection<Tree<String>> readTrees(String path, int lowFileNum, int highFileNumber, int numThreads,
+      boolean ordered) {
+    TreeCollection trees = new TreeCollection(path, lowFileNum, highFileNumber);
+    trees.numThreads = numThreads;
+    trees.ordered = ordered;
+    return trees;
+  }
+
+  /**
+   * A lazy stream of the trees, in file order. A parallel stream parses the
+   * files concurrently.
+   */
+  public static Stream<Tree<String>> streamTrees(String path, int lowFileNum, int highFileNumber, boolean parallel) {
+    return new TreeCollection(path, lowFileNum, highFileNumber).stream(parallel);
+  }
+
   public static void main(String[] args) {
     Collection<Tree<String>> trees = readTrees(args[0]);
     for (Tree<String> tree : trees) {
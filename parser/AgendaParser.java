@@ -0,0 +1,551 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+import nlp.util.GeneralPriorityQueue;
+import nlp.util.Indexer;
+
+/**
+ * Best-first agenda parsing (Knuth's algorithm) over the indexes of
+ * ArrayCKYParser. Items are (span, state) pairs in two layers, built by a
+ * binary rule or a tag, and after the closed unary rules, just like the two
+ * layers of a chart cell. Items are popped in order of their inside log score,
+ * and parsing stops as soon as the closed root item of the whole sentence is
+ * popped, which is then the Viterbi parse.
+ *
+ * Popping in score order is only exact if combining items never raises a
+ * score. Rule scores are probabilities, but tag scores are P(tag|word)/P(tag)
+ * ratios, so every tag score of a word is divided by the best one. This
+ * scales all parses of the sentence alike.
+ *
+ * With A* the priority of an item adds an outside estimate: the Viterbi outside
+ * score of its base state in the grammar projected onto base states, each
+ * projected rule scoring the best of its refinements. The estimate never
+ * underrates the real outside score, so the first root popped is still the
+ * best parse. It pays off for split grammars, where the projected grammar is
+ * much smaller. Beam and parallel settings of ArrayCKYParser are not used;
+ * a budget is charged one edge per popped item, and stats count popped items
+ * as edges.
+ */
+public class AgendaParser extends ArrayCKYParser {
+	static final int BINARY = 0;
+	static final int CLOSED = 1;
+	// the backpointer of a closed item holding its binary item as it is
+	static final int SELF = -3;
+	static final int BUDGET_BLOCK = 64;
+
+	boolean aStar;
+	// the projected grammar of the A* estimate
+	Indexer<String> coarseIndexer;
+	int numCoarseStates;
+	int[] projection;
+	int coarseRoot;
+	int[] coarseLeftStarts;
+	int[] coarseParents;
+	int[] coarseRights;
+	double[] coarseBinaryScores;
+	int[][] coarseUnaryParentsByChild;
+	double[][] coarseUnaryScoresByChild;
+	AtomicLong poppedItems = new AtomicLong();
+
+	public AgendaParser(CKYParser model, boolean aStar) {
+		this(model.grammar, model.lexicon, model.uc, model.getRoot(), aStar);
+	}
+
+	public AgendaParser(Grammar grammar, Lexicon lexicon, UnaryClosure uc,
+			String root, boolean aStar) {
+		super(grammar, lexicon, uc, root);
+		this.aStar = aStar;
+		super.setLogSpace(true);
+		if (aStar)
+			projectGrammar();
+	}
+
+	@Override
+	public void setLogSpace(boolean logSpace) {
+		if (!logSpace)
+			throw new RuntimeException(
+					"AgendaParser always scores in log space");
+	}
+
+	/**
+	 * The number of items popped from the agenda so far.
+	 */
+	public long getPoppedItems() {
+		return poppedItems.get();
+	}
+
+	/**
+	 * A (span, state) item of one layer with its best inside score found so
+	 * far and the backpointer of that score.
+	 */
+	static class Item {
+		int layer, i, j, state;
+		double score = ABSENT;
+		boolean done;
+		// the split point, LEXICAL, UNARY or SELF; for unaries left is the
+		// child state and right the closed rule
+		int split, left, right;
+
+		Item(int layer, int i, int j, int state) {
+			this.layer = layer;
+			this.i = i;
+			this.j = j;
+			this.state = state;
+		}
+	}
+
+	/**
+	 * The agenda and items of one sentence.
+	 */
+	class Agenda {
+		List<String> sentence;
+		int length;
+		GeneralPriorityQueue<Item> queue = new GeneralPriorityQueue<Item>();
+		Map<Long, Item> items = new HashMap<Long, Item>();
+		// done closed items by start and by end position
+		List<List<Item>> doneByStart = new ArrayList<List<Item>>();
+		List<List<Item>> doneByEnd = new ArrayList<List<Item>>();
+		// outside estimates of the binary and closed layers, null without A*
+		double[][][][] estimates;
+
+		Agenda(List<String> sentence) {
+			this.sentence = sentence;
+			length = sentence.size();
+			for (int i = 0; i <= length; i++) {
+				doneByStart.add(new ArrayList<Item>());
+				doneByEnd.add(new ArrayList<Item>());
+			}
+		}
+
+		Item getItem(int layer, int i, int j, int state) {
+			return items.get(key(layer, i, j, state));
+		}
+
+		long key(int layer, int i, int j, int state) {
+			return (((long) layer * (length + 1) + i) * (length + 1) + j)
+					* numStates + state;
+		}
+
+		/**
+		 * Offer a new derivation of an item, keeping it if it beats the best
+		 * one found so far.
+		 */
+		void discover(int layer, int i, int j, int state, double score,
+				int split, int left, int right) {
+			double estimate = 0.0;
+			if (estimates != null) {
+				estimate = estimates[layer][i][j][projection[state]];
+				if (estimate == ABSENT) // not part of any parse
+					return;
+			}
+			long key = key(layer, i, j, state);
+			Item item = items.get(key);
+			if (item == null) {
+				item = new Item(layer, i, j, state);
+				items.put(key, item);
+			}
+			if (item.done || !(score > item.score))
+				return;
+			item.score = score;
+			item.split = split;
+			item.left = left;
+			item.right = right;
+			queue.relaxPriority(item, score + estimate);
+		}
+	}
+
+	@Override
+	protected Tree<String> getBestAnnotatedParse(List<String> sentence) {
+		if (stats == null)
+			return parseAgenda(sentence, null);
+		long start = System.nanoTime();
+		ParseStats.Sentence counts = new ParseStats.Sentence();
+		boolean finished = false;
+		try {
+			Tree<String> tree = parseAgenda(sentence, counts);
+			finished = true;
+			return tree;
+		} finally {
+			stats.record(sentence.size(), System.nanoTime() - start, counts,
+					finished);
+		}
+	}
+
+	private Tree<String> parseAgenda(List<String> sentence,
+			ParseStats.Sentence counts) {
+		Agenda agenda = new Agenda(sentence);
+		int len = agenda.length;
+		double[][] tagScores = scoreTags(sentence);
+		if (aStar) {
+			agenda.estimates = estimateOutside(tagScores, len);
+			if (agenda.estimates == null)
+				throw new RuntimeException("No parse for span (0, " + len
+						+ ") with label " + stateIndexer.get(rootState));
+		}
+		for (int j = 1; j <= len; j++) {
+			for (int tag = 0; tag < numStates; tag++) {
+				if (tagScores[j - 1][tag] != ABSENT)
+					agenda.discover(BINARY, j - 1, j, tag,
+							tagScores[j - 1][tag], LEXICAL, -1, -1);
+			}
+		}
+		ParseBudget budget = newBudget();
+		long popped = 0;
+		Item goal = null;
+		while (!agenda.queue.isEmpty()) {
+			Item item = agenda.queue.removeFirst();
+			item.done = true;
+			popped++;
+			// charged in blocks, reading the clock for every pop is too slow
+			if (budget != null && popped % BUDGET_BLOCK == 0) {
+				try {
+					budget.charge(BUDGET_BLOCK);
+				} catch (ParseBudget.Exceeded e) {
+					poppedItems.addAndGet(popped);
+					if (counts != null)
+						counts.edges.addAndGet(popped);
+					throw e;
+				}
+			}
+			if (item.layer == CLOSED && item.i == 0 && item.j == len
+					&& item.state == rootState) {
+				goal = item;
+				break;
+			}
+			if (item.layer == BINARY)
+				closeItem(agenda, item);
+			else
+				combineItem(agenda, item);
+		}
+		poppedItems.addAndGet(popped);
+		if (counts != null)
+			counts.edges.addAndGet(popped);
+		if (goal == null)
+			throw new RuntimeException("No parse for span (0, " + len
+					+ ") with label " + stateIndexer.get(rootState));
+		return buildTree(agenda, goal);
+	}
+
+	/**
+	 * The log tag scores of every word over state ids, each divided by the
+	 * best score of its word, ABSENT for tags the word cannot take.
+	 */
+	double[][] scoreTags(List<String> sentence) {
+		double[][] scores = new double[sentence.size()][numStates];
+		int[] tagIds = new int[tags.length];
+		double[] probabilities = new double[tags.length];
+		for (int w = 0; w < sentence.size(); w++) {
+			Arrays.fill(scores[w], ABSENT);
+			int numTags = tagTable.getTagScores(sentence.get(w), tagIds,
+					probabilities);
+			double best = ABSENT;
+			for (int t = 0; t < numTags; t++) {
+				best = Math.max(best, Math.log(probabilities[t]));
+			}
+			for (int t = 0; t < numTags; t++) {
+				scores[w][tagStates[tagIds[t]]] = Math.log(probabilities[t])
+						- best;
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Apply the closed unary rules to a popped binary item, including the
+	 * empty chain that keeps it as it is.
+	 */
+	private void closeItem(Agenda agenda, Item item) {
+		agenda.discover(CLOSED, item.i, item.j, item.state, item.score, SELF,
+				item.state, -1);
+		int[] parents = unaryParentsByChild[item.state];
+		double[] ruleScores = unaryScoresByChild[item.state];
+		for (int r = 0; r < parents.length; r++) {
+			agenda.discover(CLOSED, item.i, item.j, parents[r], item.score
+					+ ruleScores[r], UNARY, item.state,
+					unaryRulesByChild[item.state][r]);
+		}
+	}
+
+	/**
+	 * Combine a popped closed item with the done closed items next to it.
+	 */
+	private void combineItem(Agenda agenda, Item item) {
+		agenda.doneByStart.get(item.i).add(item);
+		agenda.doneByEnd.get(item.j).add(item);
+		for (Item right : agenda.doneByStart.get(item.j)) {
+			combine(agenda, item, right);
+		}
+		for (Item left : agenda.doneByEnd.get(item.i)) {
+			combine(agenda, left, item);
+		}
+	}
+
+	private void combine(Agenda agenda, Item left, Item right) {
+		int end = compiled.binaryLeftStarts[left.state + 1];
+		int[] rights = compiled.binaryRights;
+		for (int r = firstBinaryRule(left.state, right.state); r < end
+				&& rights[r] == right.state; r++) {
+			agenda.discover(BINARY, left.i, right.j, compiled.binaryParents[r],
+					left.score + right.score + binaryScores[r], left.j,
+					left.state, right.state);
+		}
+	}
+
+	/**
+	 * The first binary rule with the given children, or the end of the rules
+	 * of the left child if there is none.
+	 */
+	private int firstBinaryRule(int left, int right) {
+		int[] rights = compiled.binaryRights;
+		int low = compiled.binaryLeftStarts[left];
+		int high = compiled.binaryLeftStarts[left + 1];
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (rights[middle] < right)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private Tree<String> buildTree(Agenda agenda, Item item) {
+		List<String> sentence = agenda.sentence;
+		String label = stateIndexer.get(item.state);
+		if (item.split == SELF)
+			return buildTree(agenda, agenda.getItem(BINARY, item.i, item.j,
+					item.state));
+		if (item.split == LEXICAL)
+			return new Tree<String>(label,
+					Collections.singletonList(new Tree<String>(sentence
+							.get(item.i))));
+		if (item.split == UNARY) {
+			List<String> path = uc.getPath(item.right);
+			Item child = agenda.getItem(BINARY, item.i, item.j, item.left);
+			if (child.split == LEXICAL) {
+				List<Tree<String>> emptyList = Collections.emptyList();
+				Tree<String> leaf = new Tree<String>(sentence.get(item.i),
+						emptyList);
+				return CKYParser.buildUnaryTree(path,
+						Collections.singletonList(leaf));
+			}
+			return CKYParser.buildUnaryTree(path.subList(0, path.size() - 1),
+					Collections.singletonList(buildTree(agenda, child)));
+		}
+		List<Tree<String>> childrenList = new ArrayList<Tree<String>>(2);
+		childrenList.add(buildTree(agenda, agenda.getItem(CLOSED, item.i,
+				item.split, item.left)));
+		childrenList.add(buildTree(agenda, agenda.getItem(CLOSED, item.split,
+				item.j, item.right)));
+		return new Tree<String>(label, childrenList);
+	}
+
+	// the A* estimate
+
+	/**
+	 * Project the binary and closed unary rules onto base states, each
+	 * projected rule scoring the best of the rules projected onto it.
+	 */
+	private void projectGrammar() {
+		coarseIndexer = new Indexer<String>();
+		projection = new int[numStates];
+		for (int state = 0; state < numStates; state++) {
+			projection[state] = coarseIndexer.addAndGetIndex(GrammarSpliter
+					.getBaseState(stateIndexer.get(state)));
+		}
+		numCoarseStates = coarseIndexer.size();
+		coarseRoot = projection[rootState];
+
+		// (left, right, parent) of the projected rules, best score
+		Map<Long, Double> binaryRules = new HashMap<Long, Double>();
+		for (int r = 0; r < binaryScores.length; r++) {
+			long key = ((long) projection[compiled.binaryLefts[r]]
+					* numCoarseStates + projection[compiled.binaryRights[r]])
+					* numCoarseStates + projection[compiled.binaryParents[r]];
+			Double best = binaryRules.get(key);
+			if (best == null || best < binaryScores[r])
+				binaryRules.put(key, binaryScores[r]);
+		}
+		Long[] keys = binaryRules.keySet().toArray(new Long[0]);
+		Arrays.sort(keys);
+		coarseLeftStarts = new int[numCoarseStates + 1];
+		coarseParents = new int[keys.length];
+		coarseRights = new int[keys.length];
+		coarseBinaryScores = new double[keys.length];
+		for (int r = 0; r < keys.length; r++) {
+			long key = keys[r];
+			coarseParents[r] = (int) (key % numCoarseStates);
+			coarseRights[r] = (int) (key / numCoarseStates % numCoarseStates);
+			coarseLeftStarts[(int) (key / numCoarseStates / numCoarseStates) + 1]++;
+			coarseBinaryScores[r] = binaryRules.get(key);
+		}
+		for (int s = 0; s < numCoarseStates; s++) {
+			coarseLeftStarts[s + 1] += coarseLeftStarts[s];
+		}
+
+		// closed unaries; a chain within one base state projects onto the
+		// empty chain, which scores at least as well
+		List<Map<Integer, Double>> unaryRules = new ArrayList<Map<Integer, Double>>();
+		for (int s = 0; s < numCoarseStates; s++) {
+			unaryRules.add(new HashMap<Integer, Double>());
+		}
+		for (int child = 0; child < numStates; child++) {
+			int[] parents = unaryParentsByChild[child];
+			for (int r = 0; r < parents.length; r++) {
+				int coarseChild = projection[child];
+				int coarseParent = projection[parents[r]];
+				if (coarseParent == coarseChild)
+					continue;
+				Double best = unaryRules.get(coarseChild).get(coarseParent);
+				if (best == null || best < unaryScoresByChild[child][r])
+					unaryRules.get(coarseChild).put(coarseParent,
+							unaryScoresByChild[child][r]);
+			}
+		}
+		coarseUnaryParentsByChild = new int[numCoarseStates][];
+		coarseUnaryScoresByChild = new double[numCoarseStates][];
+		for (int child = 0; child < numCoarseStates; child++) {
+			Map<Integer, Double> rules = unaryRules.get(child);
+			coarseUnaryParentsByChild[child] = new int[rules.size()];
+			coarseUnaryScoresByChild[child] = new double[rules.size()];
+			int r = 0;
+			for (Map.Entry<Integer, Double> rule : rules.entrySet()) {
+				coarseUnaryParentsByChild[child][r] = rule.getKey();
+				coarseUnaryScoresByChild[child][r++] = rule.getValue();
+			}
+		}
+	}
+
+	/**
+	 * Viterbi outside scores of the projected grammar for the binary and
+	 * closed layers, indexed [layer][i][j][coarse state]. Returns null if the
+	 * projected grammar has no parse.
+	 */
+	double[][][][] estimateOutside(double[][] tagScores, int len) {
+		int n = numCoarseStates;
+		double[][][] insideBinary = new double[len + 1][len + 1][];
+		double[][][] inside = new double[len + 1][len + 1][];
+		for (int j = 1; j <= len; j++) {
+			double[] scores = newScores(n);
+			for (int tag = 0; tag < numStates; tag++) {
+				int coarseTag = projection[tag];
+				scores[coarseTag] = Math.max(scores[coarseTag],
+						tagScores[j - 1][tag]);
+			}
+			insideBinary[j - 1][j] = scores;
+			inside[j - 1][j] = closeInside(scores);
+		}
+		for (int span = 2; span <= len; span++) {
+			for (int i = 0; i + span <= len; i++) {
+				int j = i + span;
+				double[] scores = newScores(n);
+				for (int k = i + 1; k < j; k++) {
+					double[] left = inside[i][k], right = inside[k][j];
+					for (int b = 0; b < n; b++) {
+						if (left[b] == ABSENT)
+							continue;
+						int end = coarseLeftStarts[b + 1];
+						for (int r = coarseLeftStarts[b]; r < end; r++) {
+							double score = left[b] + right[coarseRights[r]]
+									+ coarseBinaryScores[r];
+							if (score > scores[coarseParents[r]])
+								scores[coarseParents[r]] = score;
+						}
+					}
+				}
+				insideBinary[i][j] = scores;
+				inside[i][j] = closeInside(scores);
+			}
+		}
+		if (inside[0][len][coarseRoot] == ABSENT)
+			return null;
+
+		double[][][] outsideBinary = new double[len + 1][len + 1][];
+		double[][][] outside = new double[len + 1][len + 1][];
+		for (int i = 0; i < len; i++) {
+			for (int j = i + 1; j <= len; j++) {
+				outside[i][j] = newScores(n);
+			}
+		}
+		outside[0][len][coarseRoot] = 0.0;
+		for (int span = len; span >= 1; span--) {
+			for (int i = 0; i + span <= len; i++) {
+				int j = i + span;
+				double[] parentOut = closeOutside(outside[i][j]);
+				outsideBinary[i][j] = parentOut;
+				for (int k = i + 1; k < j; k++) {
+					double[] left = inside[i][k], right = inside[k][j];
+					double[] leftOut = outside[i][k], rightOut = outside[k][j];
+					for (int b = 0; b < n; b++) {
+						if (left[b] == ABSENT)
+							continue;
+						int end = coarseLeftStarts[b + 1];
+						for (int r = coarseLeftStarts[b]; r < end; r++) {
+							int c = coarseRights[r];
+							double out = parentOut[coarseParents[r]]
+									+ coarseBinaryScores[r];
+							if (right[c] == ABSENT || out == ABSENT)
+								continue;
+							if (out + right[c] > leftOut[b])
+								leftOut[b] = out + right[c];
+							if (out + left[b] > rightOut[c])
+								rightOut[c] = out + left[b];
+						}
+					}
+				}
+			}
+		}
+		return new double[][][][] { outsideBinary, outside };
+	}
+
+	private static double[] newScores(int n) {
+		double[] scores = new double[n];
+		Arrays.fill(scores, ABSENT);
+		return scores;
+	}
+
+	/**
+	 * Viterbi inside scores after the projected closed unary rules.
+	 */
+	private double[] closeInside(double[] binaryScores) {
+		double[] scores = binaryScores.clone();
+		for (int a = 0; a < binaryScores.length; a++) {
+			if (binaryScores[a] == ABSENT)
+				continue;
+			int[] parents = coarseUnaryParentsByChild[a];
+			double[] ruleScores = coarseUnaryScoresByChild[a];
+			for (int r = 0; r < parents.length; r++) {
+				double score = binaryScores[a] + ruleScores[r];
+				if (score > scores[parents[r]])
+					scores[parents[r]] = score;
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Viterbi outside scores of the binary layer from those of the closed
+	 * layer.
+	 */
+	private double[] closeOutside(double[] scores) {
+		double[] binaryScores = scores.clone();
+		for (int a = 0; a < scores.length; a++) {
+			int[] parents = coarseUnaryParentsByChild[a];
+			double[] ruleScores = coarseUnaryScoresByChild[a];
+			for (int r = 0; r < parents.length; r++) {
+				double score = ruleScores[r] + scores[parents[r]];
+				if (score > binaryScores[a])
+					binaryScores[a] = score;
+			}
+		}
+		return binaryScores;
+	}
+}
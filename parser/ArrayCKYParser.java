@@ -0,0 +1,840 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+import nlp.util.Indexer;
+import nlp.util.Pair;
+
+/**
+ * CKY chart engine working on integer state ids. The grammar, lexicon and unary
+ * closure of a trained CKYParser (or one of its subclasses) are indexed once;
+ * each chart cell then stores its states, inside scores and backpointers in
+ * flat parallel arrays, so the binary rule loop does no hashing, boxing or
+ * allocation. Its trees have the same Viterbi score as those of the wrapped
+ * parser, but ties between derivations of equal score may resolve
+ * differently: states are visited in id order rather than hash order, unary
+ * rules are applied to the finished binary scores of a cell, and the lexical
+ * entry of a tag replaces a unary entry found for it earlier in the cell.
+ * 
+ * All cells of one span length only depend on shorter spans, so when a
+ * ForkJoinPool is set the cells of each diagonal are filled concurrently for
+ * sentences of at least minParallelLength words.
+ * 
+ * Each finished cell can be pruned to a beam: only states scoring at least
+ * beamRatio times the best state of the cell are kept, and at most beamSize of
+ * them. The number of pruned and kept edges is counted.
+ * 
+ * In log space mode all scores are summed logarithms instead of products of
+ * probabilities, so long sentences neither underflow to zero nor slow down on
+ * denormal numbers.
+ * 
+ * A budget of wall time and chart edges can bound the work spent on one
+ * sentence; a parse running over it stops with ParseBudget.Exceeded, which
+ * FallbackParser turns into a parse by a cheaper parser.
+ * 
+ * With a ParseStats set, the time, cells, edges and rule applications of every
+ * sentence are recorded.
+ */
+public class ArrayCKYParser implements Parser {
+	Grammar grammar;
+	Lexicon lexicon;
+	UnaryClosure uc;
+	String root;
+	Indexer<String> stateIndexer = new Indexer<String>();
+	int numStates;
+	int rootState;
+	// lexical tags, in the order the lexicon reports them
+	TagScoreTable tagTable;
+	String[] tags;
+	int[] tagStates;
+	// binary rules, grouped by left child
+	CompiledGrammar compiled;
+	double[] binaryScores;
+	// closed unary rules grouped by child, self loops excluded; the rule ids
+	// are those of the closure
+	int[][] unaryParentsByChild;
+	int[][] unaryRulesByChild;
+	double[][] unaryScoresByChild;
+	// the same rules grouped by parent, for k-best extraction
+	int[][] unaryChildrenByParent;
+	int[][] unaryRulesByParent;
+	double[][] unaryScoresByParent;
+	// parallel diagonal filling, off unless a pool is set
+	ForkJoinPool pool;
+	int minParallelLength = Integer.MAX_VALUE;
+	ThreadLocal<CellScratch> scratches = new ThreadLocal<CellScratch>() {
+		@Override
+		protected CellScratch initialValue() {
+			return new CellScratch(numStates, tags.length);
+		}
+	};
+	ThreadLocal<ChartArena> arenas = new ThreadLocal<ChartArena>() {
+		@Override
+		protected ChartArena initialValue() {
+			return new ChartArena();
+		}
+	};
+
+	boolean logSpace = false;
+	// per cell beam, off by default
+	int beamSize = Integer.MAX_VALUE;
+	double beamRatio = 0.0;
+	AtomicLong prunedEdges = new AtomicLong();
+	AtomicLong keptEdges = new AtomicLong();
+	// per sentence budget, off by default
+	long budgetNanos = Long.MAX_VALUE;
+	long budgetEdges = Long.MAX_VALUE;
+	// instrumentation, off by default
+	ParseStats stats;
+
+	// backpointer marks, stored in the split array of a cell
+	static final int LEXICAL = -1;
+	static final int UNARY = -2;
+	// score of a state not present in a cell; an underflowed probability of 0
+	// still counts as present, just as it does in CKYParser
+	static final double ABSENT = Double.NEGATIVE_INFINITY;
+
+	public ArrayCKYParser(CKYParser model) {
+		this(model.grammar, model.lexicon, model.uc, model.getRoot());
+	}
+
+	public ArrayCKYParser(Grammar grammar, Lexicon lexicon, UnaryClosure uc,
+			String root) {
+		this.grammar = grammar;
+		this.lexicon = lexicon;
+		this.uc = uc;
+		this.root = root;
+		System.out.print("Indexing grammar for the array chart ... ");
+		indexStates();
+		indexBinaryRules();
+		indexUnaryRules();
+		System.out.println("done. (" + numStates + " states)");
+	}
+
+	/**
+	 * A plain chart parser sharing the indexed grammar of another one, with
+	 * its scoring mode but default beam, budget and parallel settings. Used
+	 * for a cheaper pass over the same model, such as a narrow beam fallback.
+	 */
+	public ArrayCKYParser(ArrayCKYParser other) {
+		grammar = other.grammar;
+		lexicon = other.lexicon;
+		uc = other.uc;
+		root = other.root;
+		stateIndexer = other.stateIndexer;
+		numStates = other.numStates;
+		rootState = other.rootState;
+		tagTable = other.tagTable;
+		tags = other.tags;
+		tagStates = other.tagStates;
+		compiled = other.compiled;
+		binaryScores = other.binaryScores;
+		unaryParentsByChild = other.unaryParentsByChild;
+		unaryRulesByChild = other.unaryRulesByChild;
+		unaryScoresByChild = other.unaryScoresByChild;
+		unaryChildrenByParent = other.unaryChildrenByParent;
+		unaryRulesByParent = other.unaryRulesByParent;
+		unaryScoresByParent = other.unaryScoresByParent;
+		logSpace = other.logSpace;
+	}
+
+	private void indexStates() {
+		tagTable = lexicon.getTagScoreTable();
+		tags = tagTable.getTags();
+		tagStates = new int[tags.length];
+		for (int t = 0; t < tags.length; t++) {
+			tagStates[t] = stateIndexer.addAndGetIndex(tags[t]);
+		}
+		for (String state : grammar.getStates()) {
+			stateIndexer.add(state);
+		}
+		rootState = stateIndexer.addAndGetIndex(root);
+		numStates = stateIndexer.size();
+	}
+
+	private void indexBinaryRules() {
+		if (compiled == null)
+			compiled = new CompiledGrammar(grammar, stateIndexer);
+		binaryScores = new double[compiled.binaryScores.length];
+		for (int r = 0; r < binaryScores.length; r++) {
+			binaryScores[r] = toScore(compiled.binaryScores[r]);
+		}
+	}
+
+	private void indexUnaryRules() {
+		Indexer<String> closureStates = uc.getStateIndexer();
+		// parser state of every closure state, -1 if the parser lacks it
+		int[] states = new int[closureStates.size()];
+		for (int s = 0; s < states.length; s++) {
+			states[s] = stateIndexer.indexOf(closureStates.get(s));
+		}
+		unaryParentsByChild = new int[numStates][];
+		unaryRulesByChild = new int[numStates][];
+		unaryScoresByChild = new double[numStates][];
+		for (int c = 0; c < numStates; c++) {
+			int child = closureStates.indexOf(stateIndexer.get(c));
+			int start = 0, end = 0, size = 0;
+			if (child >= 0) {
+				start = uc.childStarts[child];
+				end = uc.childStarts[child + 1];
+			}
+			for (int rule = start; rule < end; rule++) {
+				if (uc.parents[rule] != child && states[uc.parents[rule]] >= 0)
+					size++;
+			}
+			unaryParentsByChild[c] = new int[size];
+			unaryRulesByChild[c] = new int[size];
+			unaryScoresByChild[c] = new double[size];
+			int r = 0;
+			for (int rule = start; rule < end; rule++) {
+				if (uc.parents[rule] == child || states[uc.parents[rule]] < 0)
+					continue;
+				unaryParentsByChild[c][r] = states[uc.parents[rule]];
+				unaryRulesByChild[c][r] = rule;
+				unaryScoresByChild[c][r] = toScore(uc.scores[rule]);
+				r++;
+			}
+		}
+		int[] counts = new int[numStates];
+		for (int c = 0; c < numStates; c++) {
+			for (int parent : unaryParentsByChild[c]) {
+				counts[parent]++;
+			}
+		}
+		unaryChildrenByParent = new int[numStates][];
+		unaryRulesByParent = new int[numStates][];
+		unaryScoresByParent = new double[numStates][];
+		for (int p = 0; p < numStates; p++) {
+			unaryChildrenByParent[p] = new int[counts[p]];
+			unaryRulesByParent[p] = new int[counts[p]];
+			unaryScoresByParent[p] = new double[counts[p]];
+			counts[p] = 0;
+		}
+		for (int c = 0; c < numStates; c++) {
+			for (int r = 0; r < unaryParentsByChild[c].length; r++) {
+				int p = unaryParentsByChild[c][r];
+				unaryChildrenByParent[p][counts[p]] = c;
+				unaryRulesByParent[p][counts[p]] = unaryRulesByChild[c][r];
+				unaryScoresByParent[p][counts[p]++] = unaryScoresByChild[c][r];
+			}
+		}
+	}
+
+	/**
+	 * Switch between products of probabilities and sums of log probabilities.
+	 * The rule scores are indexed again from the grammar and closure.
+	 */
+	public void setLogSpace(boolean logSpace) {
+		this.logSpace = logSpace;
+		indexBinaryRules();
+		indexUnaryRules();
+	}
+
+	double toScore(double probability) {
+		return logSpace ? Math.log(probability) : probability;
+	}
+
+	/**
+	 * Fill the cells of each span length concurrently on the given pool.
+	 * 
+	 * @param pool
+	 *            the pool to run the cells on, null to always parse serially
+	 * @param minParallelLength
+	 *            sentences shorter than this are parsed on the calling thread
+	 */
+	public void setParallel(ForkJoinPool pool, int minParallelLength) {
+		this.pool = pool;
+		this.minParallelLength = minParallelLength;
+	}
+
+	/**
+	 * Prune every cell after its unary closure.
+	 * 
+	 * @param beamSize
+	 *            the maximum number of states kept in a cell
+	 * @param beamRatio
+	 *            states scoring less than beamRatio times the best state of
+	 *            the cell are dropped, 0 keeps all
+	 */
+	public void setBeam(int beamSize, double beamRatio) {
+		this.beamSize = beamSize;
+		this.beamRatio = beamRatio;
+	}
+
+	/**
+	 * Bound the work spent on each sentence.
+	 * 
+	 * @param maxMillis
+	 *            the wall time a parse may take, Long.MAX_VALUE for no limit
+	 * @param maxEdges
+	 *            the number of chart edges a parse may build, Long.MAX_VALUE
+	 *            for no limit
+	 */
+	public void setBudget(long maxMillis, long maxEdges) {
+		this.budgetNanos = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+				: maxMillis * 1000000;
+		this.budgetEdges = maxEdges;
+	}
+
+	/**
+	 * A fresh budget for one sentence, null if there are no limits.
+	 */
+	ParseBudget newBudget() {
+		if (budgetNanos == Long.MAX_VALUE && budgetEdges == Long.MAX_VALUE)
+			return null;
+		return new ParseBudget(budgetNanos, budgetEdges);
+	}
+
+	/**
+	 * Record the work done on every sentence into stats, null to stop.
+	 */
+	public void setStats(ParseStats stats) {
+		this.stats = stats;
+	}
+
+	public ParseStats getStats() {
+		return stats;
+	}
+
+	public long getPrunedEdges() {
+		return prunedEdges.get();
+	}
+
+	public long getKeptEdges() {
+		return keptEdges.get();
+	}
+
+	@Override
+	public Tree<String> getBestParse(List<String> sentence) {
+		Tree<String> annotatedBestParse = getBestAnnotatedParse(sentence);
+		return TreeAnnotations.unAnnotateTree(annotatedBestParse);
+	}
+
+	/**
+	 * The k best parses of the sentence with their scores, best first, read
+	 * off the chart of one parse by lazy k-best extraction. Parses that only
+	 * differ in annotation, such as the substates of a split grammar, count
+	 * once with the score of their best derivation. At most k *
+	 * KBestExtractor.DERIVATIONS_PER_PARSE derivations are visited, so
+	 * fewer than k parses may come back, and none if the chart has no parse
+	 * at the root. Parses are recorded in the ParseStats like 1-best parses,
+	 * a sentence without one as aborted.
+	 */
+	public List<Pair<Tree<String>, Double>> getKBestParses(
+			List<String> sentence, int k) {
+		Chart chart = newChart(sentence);
+		long start = chart.stats == null ? 0 : System.nanoTime();
+		boolean finished = false;
+		try {
+			Chart parsed = parseChart(chart);
+			if (parsed.cells[0][parsed.length].indexOf(rootState) < 0)
+				return Collections.emptyList();
+			List<Pair<Tree<String>, Double>> parses = new KBestExtractor(this,
+					parsed).getKBestParses(k);
+			finished = true;
+			return parses;
+		} finally {
+			if (chart.stats != null)
+				stats.record(chart.length, System.nanoTime() - start,
+						chart.stats, finished);
+		}
+	}
+
+	protected Tree<String> getBestAnnotatedParse(List<String> sentence) {
+		Chart chart = newChart(sentence);
+		if (chart.stats == null) {
+			parseChart(chart);
+			return buildTree(chart, 0, chart.length, rootState);
+		}
+		long start = System.nanoTime();
+		boolean finished = false;
+		try {
+			parseChart(chart);
+			Tree<String> tree = buildTree(chart, 0, chart.length, rootState);
+			finished = true;
+			return tree;
+		} finally {
+			stats.record(chart.length, System.nanoTime() - start,
+					chart.stats, finished);
+		}
+	}
+
+	Chart newChart(List<String> sentence) {
+		Chart chart = new Chart(sentence, arenas.get().getCells(
+				sentence.size()));
+		chart.budget = newBudget();
+		if (stats != null)
+			chart.stats = new ParseStats.Sentence();
+		return chart;
+	}
+
+	/**
+	 * Fill all cells of the chart, honouring its constraints if it has any.
+	 */
+	protected Chart parseChart(Chart chart) {
+		int len = chart.length;
+		CellScratch scratch = scratches.get();
+		// tagging is a cheap lookup in the read-only TagScoreTable, not worth
+		// a task per word
+		for (int j = 1; j <= len; j++) {
+			chart.cells[j - 1][j] = fillLexicalCell(chart, j, scratch);
+		}
+		if (pool != null && len >= minParallelLength) {
+			for (int span = 2; span <= len; span++) {
+				pool.invoke(new DiagonalTask(chart, span, 0, len - span + 1));
+			}
+		} else {
+			for (int j = 2; j <= len; j++) { // loop the right end
+				for (int i = j - 2; i >= 0; i--) { // loop the left end
+					chart.cells[i][j] = fillSpanCell(chart, i, j, scratch);
+				}
+			}
+		}
+		return chart;
+	}
+
+	/**
+	 * Score the tags the word can take and apply the closed unary rules on
+	 * top of the tags.
+	 */
+	Cell fillLexicalCell(Chart chart, int j, CellScratch scratch) {
+		String word = chart.sentence.get(j - 1);
+		boolean logSpace = this.logSpace;
+		int numTags = tagTable.getTagScores(word, scratch.tagIds,
+				scratch.tagScores);
+		int unaryRules = 0;
+		for (int n = 0; n < numTags; n++) {
+			int tag = tagStates[scratch.tagIds[n]];
+			if (!chart.isAllowed(j - 1, j, tag))
+				continue;
+			double score = toScore(scratch.tagScores[n]);
+			scratch.put(tag, score, LEXICAL, -1, -1);
+			int[] parents = unaryParentsByChild[tag];
+			double[] ruleScores = unaryScoresByChild[tag];
+			unaryRules += parents.length;
+			for (int r = 0; r < parents.length; r++) {
+				double p = logSpace ? score + ruleScores[r] : score
+						* ruleScores[r];
+				if (p > scratch.scores[parents[r]]
+						&& chart.isAllowed(j - 1, j, parents[r])) {
+					scratch.put(parents[r], p, UNARY, tag,
+							unaryRulesByChild[tag][r]);
+				}
+			}
+		}
+		return finishCell(chart, scratch, chart.cells[j - 1][j], 0, unaryRules);
+	}
+
+	/**
+	 * Combine all splits of (i, j) with binary rules, then apply the closed
+	 * unary rules on top of the binary results.
+	 */
+	Cell fillSpanCell(Chart chart, int i, int j, CellScratch scratch) {
+		double[] scores = scratch.scores;
+		double[] rightScores = scratch.rightScores;
+		boolean logSpace = this.logSpace;
+		int[] leftStarts = compiled.binaryLeftStarts;
+		int[] binaryParents = compiled.binaryParents;
+		int[] binaryRights = compiled.binaryRights;
+		double[] binaryScores = this.binaryScores;
+		int binaryRules = 0, unaryRules = 0;
+		for (int k = i + 1; k < j; k++) { // loop the separate position
+			Cell leftCell = chart.cells[i][k], rightCell = chart.cells[k][j];
+			rightCell.scatter(rightScores);
+			for (int l = 0; l < leftCell.size; l++) {
+				int b = leftCell.states[l];
+				double scoreB = leftCell.scores[l];
+				int end = leftStarts[b + 1];
+				for (int r = leftStarts[b]; r < end; r++) {
+					double scoreC = rightScores[binaryRights[r]];
+					if (scoreC == ABSENT)
+						continue;
+					binaryRules++;
+					double score = logSpace ? scoreB + scoreC + binaryScores[r]
+							: scoreB * scoreC * binaryScores[r];
+					if (score > scores[binaryParents[r]]
+							&& chart.isAllowed(i, j, binaryParents[r])) {
+						scratch.put(binaryParents[r], score, k, b,
+								binaryRights[r]);
+					}
+				}
+			}
+			rightCell.unscatter(rightScores);
+		}
+		// apply unary rules to the binary results of (i, j)
+		int binaryCount = scratch.size;
+		double[] binaryResults = scratch.snapshotScores();
+		for (int t = 0; t < binaryCount; t++) {
+			int a = scratch.touched[t];
+			double scoreA = binaryResults[t];
+			int[] parents = unaryParentsByChild[a];
+			double[] ruleScores = unaryScoresByChild[a];
+			unaryRules += parents.length;
+			for (int r = 0; r < parents.length; r++) {
+				double score = logSpace ? scoreA + ruleScores[r] : scoreA
+						* ruleScores[r];
+				if (score > scores[parents[r]]
+						&& chart.isAllowed(i, j, parents[r])) {
+					scratch.put(parents[r], score, UNARY, a,
+							unaryRulesByChild[a][r]);
+				}
+			}
+		}
+		return finishCell(chart, scratch, chart.cells[i][j], binaryRules,
+				unaryRules);
+	}
+
+	/**
+	 * Prune the scratch to the beam, copy it into the cell, and count and
+	 * charge the edges built.
+	 */
+	Cell finishCell(Chart chart, CellScratch scratch, Cell cell,
+			int binaryRules, int unaryRules) {
+		int built = scratch.size, pruned = 0;
+		if (beamSize < scratch.size || beamRatio > 0) {
+			double ratio = logSpace ? Math.log(beamRatio) : beamRatio;
+			pruned = scratch.prune(beamSize, ratio, logSpace);
+			prunedEdges.addAndGet(pruned);
+		}
+		keptEdges.addAndGet(scratch.size);
+		scratch.toCell(cell);
+		if (chart.stats != null)
+			chart.stats.addCell(built, binaryRules, unaryRules, pruned);
+		// charged once the scratch is reset, so it stays clean if this throws
+		chart.charge(built);
+		return cell;
+	}
+
+	Tree<String> buildTree(Chart chart, int i, int j, int state) {
+		List<String> sentence = chart.sentence;
+		Cell cell = chart.cells[i][j];
+		int index = cell.indexOf(state);
+		if (index < 0) {
+			if (i == j - 1) {
+				return new Tree<String>(stateIndexer.get(state),
+						Collections.singletonList(new Tree<String>(sentence
+								.get(i))));
+			}
+			throw new RuntimeException("No parse for span (" + i + ", " + j
+					+ ") with label " + stateIndexer.get(state));
+		}
+		String label = stateIndexer.get(state);
+		int split = cell.splits[index];
+		if (split == LEXICAL) {
+			return new Tree<String>(label,
+					Collections.singletonList(new Tree<String>(sentence.get(i))));
+		}
+		if (split == UNARY) {
+			List<String> path = uc
+					.getPath(cell.rights[index]);
+			if (i == j - 1) {
+				List<Tree<String>> emptyList = Collections.emptyList();
+				Tree<String> leaf = new Tree<String>(sentence.get(i), emptyList);
+				return CKYParser.buildUnaryTree(path,
+						Collections.singletonList(leaf));
+			}
+			Tree<String> childTree = buildTree(chart, i, j,
+					cell.lefts[index]);
+			return CKYParser.buildUnaryTree(path.subList(0, path.size() - 1),
+					Collections.singletonList(childTree));
+		}
+		// a binary rule
+		Tree<String> leftTree = buildTree(chart, i, split,
+				cell.lefts[index]);
+		Tree<String> rightTree = buildTree(chart, split, j,
+				cell.rights[index]);
+		List<Tree<String>> childrenList = new ArrayList<Tree<String>>(2);
+		childrenList.add(leftTree);
+		childrenList.add(rightTree);
+		return new Tree<String>(label, childrenList);
+	}
+
+	/**
+	 * Fills the cells (i, i + span) for i in [from, to), splitting the range
+	 * in halves until a single cell is left.
+	 */
+	class DiagonalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		Chart chart;
+		int span, from, to;
+
+		DiagonalTask(Chart chart, int span, int from, int to) {
+			this.chart = chart;
+			this.span = span;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				chart.cells[from][from + span] = fillSpanCell(chart, from, from
+						+ span, scratches.get());
+				return;
+			}
+			int middle = (from + to) / 2;
+			invokeAll(new DiagonalTask(chart, span, from, middle),
+					new DiagonalTask(chart, span, middle, to));
+		}
+	}
+
+	/**
+	 * The cells of the charts of one thread, sized for the longest sentence
+	 * seen so far. A cell keeps its arrays from sentence to sentence and only
+	 * grows them, so filling a chart allocates no cells. A chart on the arena
+	 * stays valid until the thread parses its next sentence.
+	 */
+	static class ChartArena {
+		Cell[][] cells = new Cell[0][0];
+
+		Cell[][] getCells(int length) {
+			if (length + 1 > cells.length) {
+				Cell[][] grown = new Cell[length + 1][length + 1];
+				for (int i = 0; i < length; i++) {
+					for (int j = i + 1; j <= length; j++) {
+						grown[i][j] = j < cells.length ? cells[i][j]
+								: new Cell(0);
+					}
+				}
+				cells = grown;
+			}
+			return cells;
+		}
+	}
+
+	/**
+	 * The cells of one sentence, plus optional constraints from a coarse pass:
+	 * a state may only enter span (i, j) if allowed[i][j] is set for its
+	 * projection. States without a projection are always allowed. The cells
+	 * come from a ChartArena and may be larger than the sentence. Edges built
+	 * are charged to the budget and counted in the stats, if the chart has them.
+	 */
+	static class Chart {
+		List<String> sentence;
+		int length;
+		Cell[][] cells;
+		boolean[][][] allowed;
+		int[] projection;
+		ParseBudget budget;
+		ParseStats.Sentence stats;
+
+		Chart(List<String> sentence, Cell[][] cells) {
+			this.sentence = sentence;
+			length = sentence.size();
+			this.cells = cells;
+		}
+
+		Chart(List<String> sentence, Cell[][] cells, boolean[][][] allowed,
+				int[] projection) {
+			this(sentence, cells);
+			this.allowed = allowed;
+			this.projection = projection;
+		}
+
+		boolean isAllowed(int i, int j, int state) {
+			if (allowed == null)
+				return true;
+			int coarseState = projection[state];
+			return coarseState < 0 || allowed[i][j][coarseState];
+		}
+
+		void charge(int edges) {
+			if (budget != null)
+				budget.charge(edges);
+		}
+
+		boolean hasParse(int state) {
+			// a single word always gets a tree, as in CKYParser
+			return length == 1 || cells[0][length].indexOf(state) >= 0;
+		}
+	}
+
+	/**
+	 * A finished chart cell. States are sorted so that backtracking can binary
+	 * search them. For a binary entry split is the split point and left/right
+	 * are the child states; for a unary entry left is the child state and right
+	 * the index of the closed unary rule.
+	 */
+	static class Cell {
+		int size;
+		int[] states;
+		double[] scores;
+		int[] splits;
+		int[] lefts;
+		int[] rights;
+
+		Cell(int size) {
+			this.size = size;
+			states = new int[size];
+			scores = new double[size];
+			splits = new int[size];
+			lefts = new int[size];
+			rights = new int[size];
+		}
+
+		/**
+		 * Empty the cell for size states, growing its arrays if they are too
+		 * small.
+		 */
+		void reset(int size) {
+			this.size = size;
+			if (states.length < size) {
+				int capacity = Math.max(size, states.length * 2);
+				states = new int[capacity];
+				scores = new double[capacity];
+				splits = new int[capacity];
+				lefts = new int[capacity];
+				rights = new int[capacity];
+			}
+		}
+
+		int indexOf(int state) {
+			return Arrays.binarySearch(states, 0, size, state);
+		}
+
+		void scatter(double[] dense) {
+			for (int n = 0; n < size; n++) {
+				dense[states[n]] = scores[n];
+			}
+		}
+
+		void unscatter(double[] dense) {
+			for (int n = 0; n < size; n++) {
+				dense[states[n]] = ABSENT;
+			}
+		}
+	}
+
+	/**
+	 * Dense per-state work arrays used while a cell is being filled. States not
+	 * present yet score ABSENT.
+	 */
+	static class CellScratch {
+		double[] scores;
+		double[] rightScores;
+		int[] splits, lefts, rights;
+		int[] touched;
+		double[] snapshot;
+		boolean[] keep;
+		int size;
+		// the tags of the word of a lexical cell
+		int[] tagIds;
+		double[] tagScores;
+
+		CellScratch(int numStates, int numTags) {
+			scores = new double[numStates];
+			rightScores = new double[numStates];
+			Arrays.fill(scores, ABSENT);
+			Arrays.fill(rightScores, ABSENT);
+			splits = new int[numStates];
+			lefts = new int[numStates];
+			rights = new int[numStates];
+			touched = new int[numStates];
+			snapshot = new double[numStates];
+			keep = new boolean[numStates];
+			tagIds = new int[numTags];
+			tagScores = new double[numTags];
+		}
+
+		void put(int state, double score, int split, int left, int right) {
+			if (scores[state] == ABSENT) {
+				touched[size++] = state;
+			}
+			scores[state] = score;
+			splits[state] = split;
+			lefts[state] = left;
+			rights[state] = right;
+		}
+
+		double[] snapshotScores() {
+			for (int t = 0; t < size; t++) {
+				snapshot[t] = scores[touched[t]];
+			}
+			return snapshot;
+		}
+
+		/**
+		 * Drop the states below the beam and return how many were dropped. In
+		 * log space beamRatio is the log of the ratio. The
+		 * child of a kept unary entry is kept too, so every backpointer still
+		 * resolves inside the cell.
+		 */
+		int prune(int beamSize, double beamRatio, boolean logSpace) {
+			double best = ABSENT;
+			for (int t = 0; t < size; t++) {
+				best = Math.max(best, scores[touched[t]]);
+			}
+			double cutoff = logSpace ? best + beamRatio : best * beamRatio;
+			if (beamSize < size) {
+				for (int t = 0; t < size; t++) {
+					snapshot[t] = scores[touched[t]];
+				}
+				Arrays.sort(snapshot, 0, size);
+				cutoff = Math.max(cutoff, snapshot[size - beamSize]);
+			}
+			// keep the states above the cutoff, and ties while there is room
+			int kept = 0, ties = 0;
+			for (int t = 0; t < size; t++) {
+				if (scores[touched[t]] > cutoff)
+					kept++;
+			}
+			for (int t = 0; t < size; t++) {
+				int state = touched[t];
+				keep[state] = scores[state] > cutoff
+						|| (scores[state] == cutoff && kept + ties++ < beamSize);
+			}
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int t = 0; t < size; t++) {
+					int state = touched[t];
+					if (keep[state] && splits[state] == UNARY
+							&& scores[lefts[state]] != ABSENT
+							&& !keep[lefts[state]]) {
+						keep[lefts[state]] = true;
+						changed = true;
+					}
+				}
+			}
+			int newSize = 0;
+			for (int t = 0; t < size; t++) {
+				int state = touched[t];
+				if (keep[state]) {
+					touched[newSize++] = state;
+					keep[state] = false;
+				} else {
+					scores[state] = ABSENT;
+				}
+			}
+			int pruned = size - newSize;
+			size = newSize;
+			return pruned;
+		}
+
+		/**
+		 * Copy the touched states into the given cell and reset the scratch.
+		 */
+		Cell toCell(Cell cell) {
+			Arrays.sort(touched, 0, size);
+			cell.reset(size);
+			for (int n = 0; n < size; n++) {
+				int state = touched[n];
+				cell.states[n] = state;
+				cell.scores[n] = scores[state];
+				cell.splits[n] = splits[state];
+				cell.lefts[n] = lefts[state];
+				cell.rights[n] = rights[state];
+				scores[state] = ABSENT;
+			}
+			size = 0;
+			return cell;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import nlp.ling.Tree;
+
+/**
+ * Parses batches of sentences concurrently on a fixed pool of worker threads.
+ * The wrapped parser must allow concurrent getBestParse calls, which holds for
+ * the trained CKY parsers and ArrayCKYParser. Results come back in the order
+ * of the input sentences.
+ */
+public class BatchParser implements Parser {
+	Parser parser;
+	ExecutorService workers;
+
+	public BatchParser(Parser parser, int numThreads) {
+		this.parser = parser;
+		this.workers = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "parse-worker");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public Tree<String> getBestParse(List<String> sentence) {
+		return parser.getBestParse(sentence);
+	}
+
+	public List<Tree<String>> getBestParses(List<List<String>> sentences) {
+		List<Callable<Tree<String>>> tasks = new ArrayList<Callable<Tree<String>>>(
+				sentences.size());
+		for (final List<String> sentence : sentences) {
+			tasks.add(new Callable<Tree<String>>() {
+				@Override
+				public Tree<String> call() {
+					return parser.getBestParse(sentence);
+				}
+			});
+		}
+		List<Tree<String>> trees = new ArrayList<Tree<String>>(
+				sentences.size());
+		try {
+			for (Future<Tree<String>> future : workers.invokeAll(tasks)) {
+				trees.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return trees;
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+}
@@ -1,6 +1,5 @@
 package nlp.parser;
 
-import java.util.Arrays;
 import java.util.List;
 
 import nlp.ling.Tree;
@@ -8,8 +7,15 @@ import nlp.ling.Tree;
 public class BinaryTree<L> {
 	L baseLabel;
 	BinaryTree<L> left, right;
-	public List<Double> inProbabilities, outProbabilities;
 	public List<String> labelVariance;
+	// state ids of labelVariance, shared by the nodes of one base label
+	public int[] stateIds;
+	// inside and outside scores of the labels, each vector scaled by a power
+	// of two: the true score is inScores[i] * 2^inScale
+	public double[] inScores, outScores;
+	public int inScale, outScale;
+	// largest kept magnitude before a vector is rescaled
+	static final int SCALE_LIMIT = 100;
 
 	public BinaryTree(L label) {
 		this.baseLabel = label;
@@ -39,20 +45,56 @@ public class BinaryTree<L> {
 		return !(isLeaf() || isPreTerminal());
 	}
 
-	public Double getIn(int index) {
-		return inProbabilities.get(index);
+	public double getIn(int index) {
+		return Math.scalb(inScores[index], inScale);
 	}
 
-	public Double getOut(int index) {
-		return outProbabilities.get(index);
+	public double getOut(int index) {
+		return Math.scalb(outScores[index], outScale);
 	}
 
 	public void SetIn(int index, double d) {
-		inProbabilities.set(index, d);
+		inScores[index] = Math.scalb(d, -inScale);
 	}
 
 	public void SetOut(int index, double d) {
-		outProbabilities.set(index, d);
+		outScores[index] = Math.scalb(d, -outScale);
+	}
+
+	/**
+	 * Move powers of two from the inside scores into inScale, after they have
+	 * been computed with scale inScale.
+	 */
+	public void rescaleIn() {
+		inScale += rescale(inScores);
+	}
+
+	public void rescaleOut() {
+		outScale += rescale(outScores);
+	}
+
+	/**
+	 * Scale the vector so its largest entry is near 1, if that entry is
+	 * outside 2^-SCALE_LIMIT .. 2^SCALE_LIMIT, and return the exponent taken
+	 * out. Powers of two are exact, so scores in range are left untouched.
+	 */
+	private static int rescale(double[] scores) {
+		double max = 0.0;
+		for (double score : scores) {
+			if (score > max)
+				max = score;
+		}
+		if (max == 0.0 || Double.isInfinite(max) || Double.isNaN(max))
+			return 0;
+		int exponent = Math.getExponent(max);
+		if (exponent == Double.MIN_EXPONENT - 1) // subnormal
+			exponent = Math.getExponent(max * 0x1p52) - 52;
+		if (Math.abs(exponent) <= SCALE_LIMIT)
+			return 0;
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = Math.scalb(scores[i], -exponent);
+		}
+		return exponent;
 	}
 
 	public int lableSize() {
@@ -99,10 +141,9 @@ public class BinaryTree<L> {
 		}
 		if (!bTree.isLeaf()) {
 			bTree.labelVariance = spliter.getVariance(bTree.getBaseLabel());
-			bTree.inProbabilities = Arrays
-					.asList(new Double[bTree.lableSize()]);
-			bTree.outProbabilities = Arrays
-					.asList(new Double[bTree.lableSize()]);
+			bTree.stateIds = spliter.getVarianceIds(bTree.getBaseLabel());
+			bTree.inScores = new double[bTree.lableSize()];
+			bTree.outScores = new double[bTree.lableSize()];
 		}
 		return bTree;
 	}
@@ -16,7 +16,17 @@ public class CKYParser implements Parser {
 	UnaryClosure uc;
 
 	public CKYParser(List<Tree<String>> trainTrees) {
+		train(trainTrees);
+	}
+
+	/**
+	 * For subclasses that need their own fields set before training, which
+	 * then call train themselves.
+	 */
+	protected CKYParser() {
+	}
 
+	protected void train(List<Tree<String>> trainTrees) {
 		System.out.print("Annotating / binarizing training trees ... ");
 		List<Tree<String>> annotatedTrainTrees = annotateTrees(trainTrees);
 		System.out.println("done.");
@@ -66,14 +76,19 @@ public class CKYParser implements Parser {
 		Map<String, Double>[][] table = (HashMap<String, Double>[][]) new HashMap[len + 1][len + 1];
 		@SuppressWarnings("unchecked")
 		Map<String, BackTrace>[][] back = (HashMap<String, BackTrace>[][]) new HashMap[len + 1][len + 1];
+		// only the tags a word can take, scores 0 left out
+		TagScoreTable tagTable = lexicon.getTagScoreTable();
+		int[] tagIds = new int[tagTable.getNumTags()];
+		double[] tagScores = new double[tagTable.getNumTags()];
 		for (int j = 1; j <= len; j++) { // loop the right end
 			// init the word->tag
 			table[j - 1][j] = new HashMap<String, Double>();
 			back[j - 1][j] = new HashMap<String, BackTrace>();
-			for (String tag : lexicon.getAllTags()) {
-				double score = lexicon.scoreTagging(sentence.get(j - 1), tag);
-				if (score == 0) // reduce states
-					continue;
+			int numTags = tagTable.getTagScores(sentence.get(j - 1), tagIds,
+					tagScores);
+			for (int t = 0; t < numTags; t++) {
+				String tag = tagTable.getTags()[tagIds[t]];
+				double score = tagScores[t];
 				table[j - 1][j].put(tag, score);
 				// unary rules
 				List<UnaryRule> urules = uc.getClosedUnaryRulesByChild(tag);
@@ -183,7 +198,7 @@ public class CKYParser implements Parser {
 		return new Tree<String>(label, childrenList);
 	}
 
-	protected <L> Tree<L> buildUnaryTree(List<L> path,
+	protected static <L> Tree<L> buildUnaryTree(List<L> path,
 			List<Tree<L>> leafChildren) {
 		List<Tree<L>> trees = leafChildren;
 		for (int k = path.size() - 1; k >= 0; k--) {
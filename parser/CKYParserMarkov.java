@@ -12,6 +12,9 @@ public class CKYParserMarkov extends CKYParser {
 		super(trainTrees);
 	}
 
+	protected CKYParserMarkov() {
+	}
+
 	@Override
 	protected List<Tree<String>> annotateTrees(List<Tree<String>> trees) {
 		TreeAnnotations.horizontal = 100;
@@ -7,17 +7,35 @@ import nlp.ling.Tree;
 import nlp.parser.Grammar.GrammarBuilder;
 
 public class CKYParserTester extends CKYParserMarkov {
+	// the unsplit grammar and lexicon, used for coarse-to-fine parsing
+	Grammar baseGrammar;
+	Lexicon baseLexicon;
+	EMGrammarTrainer.Settings settings;
 
 	public CKYParserTester(List<Tree<String>> trainTrees) {
-		super(trainTrees);
+		this(trainTrees, new EMGrammarTrainer.Settings());
+	}
+
+	/**
+	 * Train with the given seeds and options. The training trees are only
+	 * read, so testers with different settings can train at the same time
+	 * on one list of trees.
+	 */
+	public CKYParserTester(List<Tree<String>> trainTrees,
+			EMGrammarTrainer.Settings settings) {
+		this.settings = settings;
+		train(trainTrees);
 	}
 
 	@Override
 	protected void buildGrammar(List<Tree<String>> annotatedTrainTrees) {
-		EMGrammarTrainer trainer = new EMGrammarTrainer(annotatedTrainTrees);
+		EMGrammarTrainer trainer = new EMGrammarTrainer(annotatedTrainTrees,
+				settings);
 		trainer.train();
 		grammar = trainer.buildGrammar();
 		lexicon = trainer.getLexicon();
+		baseGrammar = trainer.baseGrammar;
+		baseLexicon = trainer.baseLexicon;
 	}
 
 	@Override
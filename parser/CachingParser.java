@@ -0,0 +1,45 @@
+package nlp.parser;
+
+import java.util.List;
+
+import nlp.ling.Tree;
+
+/**
+ * Answers repeated sentences from a ParseCache and parses the others with the
+ * wrapped parser. The wrapped parser is the model of the cache entries, so
+ * parsers wrapping different models can share one cache. Concurrent calls are
+ * safe if the wrapped parser allows them; two threads missing on the same
+ * sentence both parse it.
+ */
+public class CachingParser implements Parser {
+	Parser parser;
+	ParseCache cache;
+
+	public CachingParser(Parser parser, ParseCache cache) {
+		this.parser = parser;
+		this.cache = cache;
+	}
+
+	public CachingParser(Parser parser, int maxEntries) {
+		this(parser, new ParseCache(maxEntries));
+	}
+
+	@Override
+	public Tree<String> getBestParse(List<String> sentence) {
+		Tree<String> tree = cache.get(parser, sentence);
+		if (tree == null) {
+			tree = parser.getBestParse(sentence);
+			if (tree != null)
+				cache.put(parser, sentence, tree);
+		}
+		return tree;
+	}
+
+	public Parser getParser() {
+		return parser;
+	}
+
+	public ParseCache getCache() {
+		return cache;
+	}
+}
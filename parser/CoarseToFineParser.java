@@ -0,0 +1,223 @@
+package nlp.parser;
+
+import java.util.List;
+
+/**
+ * Coarse-to-fine parsing for split-merge grammars. Each sentence is first
+ * parsed with the unsplit base grammar, computing inside and outside scores;
+ * a refined state may then only enter a span in the fine pass if the posterior
+ * of its base state over that span is at least the threshold. If the pruned
+ * fine pass finds no parse the sentence is parsed again without pruning.
+ */
+public class CoarseToFineParser extends ArrayCKYParser {
+	ArrayCKYParser coarse;
+	// fine state id to coarse state id, -1 if the base state is unknown
+	int[] projection;
+	double threshold;
+
+	public CoarseToFineParser(CKYParserTester model, double threshold) {
+		this(model, model.baseGrammar, model.baseLexicon, threshold);
+	}
+
+	public CoarseToFineParser(CKYParser model, Grammar coarseGrammar,
+			Lexicon coarseLexicon, double threshold) {
+		this(model.grammar, model.lexicon, model.uc, model.getRoot(),
+				coarseGrammar, coarseLexicon, threshold);
+	}
+
+	public CoarseToFineParser(Grammar grammar, Lexicon lexicon,
+			UnaryClosure uc, String root, Grammar coarseGrammar,
+			Lexicon coarseLexicon, double threshold) {
+		super(grammar, lexicon, uc, root);
+		this.coarse = new ArrayCKYParser(coarseGrammar, coarseLexicon,
+				new UnaryClosure(coarseGrammar), GrammarSpliter.getBaseState(root));
+		this.threshold = threshold;
+		projection = new int[numStates];
+		for (int state = 0; state < numStates; state++) {
+			projection[state] = coarse.stateIndexer.indexOf(GrammarSpliter
+					.getBaseState(stateIndexer.get(state)));
+		}
+	}
+
+	@Override
+	protected Chart parseChart(Chart chart) {
+		boolean[][][] allowed = computeConstraints(chart);
+		if (allowed != null) {
+			// the pruned chart fills the same cells, which the unpruned pass
+			// below overwrites if it has to run
+			Chart pruned = new Chart(chart.sentence, chart.cells, allowed,
+					projection);
+			pruned.budget = chart.budget;
+			pruned.stats = chart.stats;
+			pruned = super.parseChart(pruned);
+			if (pruned.hasParse(rootState))
+				return pruned;
+		}
+		return super.parseChart(chart);
+	}
+
+	/**
+	 * Run inside-outside with the coarse grammar and mark the (span, coarse
+	 * state) pairs whose posterior reaches the threshold. Returns null if the
+	 * coarse grammar has no parse for the sentence. The states with an
+	 * inside score are charged to the budget of the chart as edges, span by
+	 * span, and every outside span checks the budget again. With stats each
+	 * coarse span is recorded as a cell of the chart, with its rule
+	 * applications.
+	 */
+	boolean[][][] computeConstraints(Chart chart) {
+		List<String> sentence = chart.sentence;
+		int len = sentence.size();
+		int n = coarse.numStates;
+		int[] leftStarts = coarse.compiled.binaryLeftStarts;
+		int[] parents = coarse.compiled.binaryParents;
+		int[] rights = coarse.compiled.binaryRights;
+		double[] ruleScores = coarse.binaryScores;
+		// scores before (binary) and after (closed) the unary layer
+		double[][][] insideBinary = new double[len + 1][len + 1][];
+		double[][][] inside = new double[len + 1][len + 1][];
+		double[][][] outside = new double[len + 1][len + 1][];
+		int[] tagIds = new int[coarse.tags.length];
+		double[] tagScores = new double[coarse.tags.length];
+		for (int j = 1; j <= len; j++) {
+			double[] scores = new double[n];
+			int numTags = coarse.tagTable.getTagScores(sentence.get(j - 1),
+					tagIds, tagScores);
+			for (int t = 0; t < numTags; t++) {
+				scores[coarse.tagStates[tagIds[t]]] = tagScores[t];
+			}
+			insideBinary[j - 1][j] = scores;
+			inside[j - 1][j] = closeInside(scores);
+			outside[j - 1][j] = new double[n];
+			int edges = countEdges(inside[j - 1][j]);
+			if (chart.stats != null)
+				chart.stats.addCell(edges, 0, countUnaryRules(scores), 0);
+			chart.charge(edges);
+		}
+		for (int span = 2; span <= len; span++) {
+			for (int i = 0; i + span <= len; i++) {
+				int j = i + span;
+				double[] scores = new double[n];
+				int binaryRules = 0;
+				for (int k = i + 1; k < j; k++) {
+					double[] left = inside[i][k], right = inside[k][j];
+					for (int b = 0; b < n; b++) {
+						if (left[b] == 0)
+							continue;
+						int end = leftStarts[b + 1];
+						for (int r = leftStarts[b]; r < end; r++) {
+							double scoreC = right[rights[r]];
+							if (scoreC == 0)
+								continue;
+							scores[parents[r]] += left[b] * scoreC
+									* ruleScores[r];
+							binaryRules++;
+						}
+					}
+				}
+				insideBinary[i][j] = scores;
+				inside[i][j] = closeInside(scores);
+				outside[i][j] = new double[n];
+				int edges = countEdges(inside[i][j]);
+				if (chart.stats != null)
+					chart.stats.addCell(edges, binaryRules,
+							countUnaryRules(scores), 0);
+				chart.charge(edges);
+			}
+		}
+		double total = inside[0][len][coarse.rootState];
+		if (total == 0 || Double.isNaN(total) || Double.isInfinite(total))
+			return null;
+
+		boolean[][][] allowed = new boolean[len + 1][len + 1][];
+		outside[0][len][coarse.rootState] = 1.0;
+		for (int span = len; span >= 1; span--) {
+			for (int i = 0; i + span <= len; i++) {
+				int j = i + span;
+				chart.charge(0);
+				double[] outsideBinary = closeOutside(outside[i][j]);
+				allowed[i][j] = new boolean[n];
+				for (int x = 0; x < n; x++) {
+					double posterior = Math.max(inside[i][j][x]
+							* outside[i][j][x], insideBinary[i][j][x]
+							* outsideBinary[x])
+							/ total;
+					allowed[i][j][x] = posterior >= threshold;
+				}
+				for (int k = i + 1; k < j; k++) {
+					double[] left = inside[i][k], right = inside[k][j];
+					double[] leftOut = outside[i][k], rightOut = outside[k][j];
+					for (int b = 0; b < n; b++) {
+						if (left[b] == 0)
+							continue;
+						int end = leftStarts[b + 1];
+						for (int r = leftStarts[b]; r < end; r++) {
+							int c = rights[r];
+							double parentOut = outsideBinary[parents[r]]
+									* ruleScores[r];
+							if (right[c] == 0 || parentOut == 0)
+								continue;
+							leftOut[b] += parentOut * right[c];
+							rightOut[c] += parentOut * left[b];
+						}
+					}
+				}
+			}
+		}
+		return allowed;
+	}
+
+	private static int countEdges(double[] scores) {
+		int edges = 0;
+		for (double score : scores) {
+			if (score != 0)
+				edges++;
+		}
+		return edges;
+	}
+
+	/**
+	 * The number of closed unary rules closeInside applies to the scores.
+	 */
+	private int countUnaryRules(double[] binaryScores) {
+		int rules = 0;
+		for (int a = 0; a < binaryScores.length; a++) {
+			if (binaryScores[a] != 0)
+				rules += coarse.unaryParentsByChild[a].length;
+		}
+		return rules;
+	}
+
+	/**
+	 * Add the closed unary rules on top of binary inside scores.
+	 */
+	private double[] closeInside(double[] binaryScores) {
+		double[] scores = binaryScores.clone();
+		for (int a = 0; a < binaryScores.length; a++) {
+			if (binaryScores[a] == 0)
+				continue;
+			int[] parents = coarse.unaryParentsByChild[a];
+			double[] ruleScores = coarse.unaryScoresByChild[a];
+			for (int r = 0; r < parents.length; r++) {
+				scores[parents[r]] += binaryScores[a] * ruleScores[r];
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Push outside scores through the closed unary rules, giving the outside
+	 * scores of the binary layer.
+	 */
+	private double[] closeOutside(double[] scores) {
+		double[] binaryScores = scores.clone();
+		for (int a = 0; a < scores.length; a++) {
+			int[] parents = coarse.unaryParentsByChild[a];
+			double[] ruleScores = coarse.unaryScoresByChild[a];
+			for (int r = 0; r < parents.length; r++) {
+				binaryScores[a] += ruleScores[r] * scores[parents[r]];
+			}
+		}
+		return binaryScores;
+	}
+}
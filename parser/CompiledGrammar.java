@@ -0,0 +1,239 @@
+package nlp.parser;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import nlp.util.CollectionUtils;
+import nlp.util.Indexer;
+
+/**
+ * A Grammar compiled into primitive arrays over integer state ids. Binary rules
+ * are stored as (parent, left, right) triples sorted by left child, then right
+ * child, then parent, so the rules of one left child and the rules of one
+ * (left, right) pair are contiguous ranges. Unary rules are sorted by child,
+ * then parent. Both kinds of rules are also indexed by parent. Scores come in
+ * two flavours: the rule score used for parsing, and the score returned by
+ * Grammar.getBinaryScore / getUnaryScore, which the EM trainer uses. Lookups
+ * neither allocate nor hash.
+ */
+public class CompiledGrammar {
+	Indexer<String> stateIndexer;
+	int numStates;
+	// binary rules, sorted by (left, right, parent)
+	int[] binaryParents;
+	int[] binaryLefts;
+	int[] binaryRights;
+	double[] binaryScores;
+	double[] binaryLookupScores;
+	// rules with left child b are [binaryLeftStarts[b], binaryLeftStarts[b+1])
+	int[] binaryLeftStarts;
+	// rule ids ordered by parent, with the same kind of start offsets
+	int[] binaryByParent;
+	int[] binaryParentStarts;
+	// unary rules, sorted by (child, parent)
+	int[] unaryParents;
+	int[] unaryChildren;
+	double[] unaryScores;
+	double[] unaryLookupScores;
+	int[] unaryChildStarts;
+	int[] unaryByParent;
+	int[] unaryParentStarts;
+
+	/**
+	 * Compile with a fresh state index, states numbered in sorted order.
+	 */
+	public CompiledGrammar(Grammar grammar) {
+		this(grammar, new Indexer<String>(CollectionUtils.sort(grammar
+				.getStates())));
+	}
+
+	/**
+	 * Compile against an existing state index, which gets any missing state of
+	 * the grammar added.
+	 */
+	public CompiledGrammar(Grammar grammar, Indexer<String> stateIndexer) {
+		this.stateIndexer = stateIndexer;
+		for (String state : grammar.getStates()) {
+			stateIndexer.add(state);
+		}
+		numStates = stateIndexer.size();
+		compileBinaryRules(grammar);
+		compileUnaryRules(grammar);
+	}
+
+	private void compileBinaryRules(final Grammar grammar) {
+		List<BinaryRule> rules = grammar.getBinaryRules();
+		final int n = rules.size();
+		final int[] parents = new int[n], lefts = new int[n], rights = new int[n];
+		for (int r = 0; r < n; r++) {
+			BinaryRule rule = rules.get(r);
+			parents[r] = stateIndexer.indexOf(rule.getParent());
+			lefts[r] = stateIndexer.indexOf(rule.getLeftChild());
+			rights[r] = stateIndexer.indexOf(rule.getRightChild());
+		}
+		Integer[] order = sortedOrder(n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (lefts[a] != lefts[b])
+					return lefts[a] < lefts[b] ? -1 : 1;
+				if (rights[a] != rights[b])
+					return rights[a] < rights[b] ? -1 : 1;
+				return parents[a] < parents[b] ? -1
+						: (parents[a] == parents[b] ? 0 : 1);
+			}
+		});
+		binaryParents = new int[n];
+		binaryLefts = new int[n];
+		binaryRights = new int[n];
+		binaryScores = new double[n];
+		binaryLookupScores = new double[n];
+		for (int r = 0; r < n; r++) {
+			BinaryRule rule = rules.get(order[r]);
+			binaryParents[r] = parents[order[r]];
+			binaryLefts[r] = lefts[order[r]];
+			binaryRights[r] = rights[order[r]];
+			binaryScores[r] = rule.getScore();
+			binaryLookupScores[r] = grammar.getBinaryScore(rule.getParent(),
+					rule.getLeftChild(), rule.getRightChild());
+		}
+		binaryLeftStarts = starts(binaryLefts);
+		binaryParentStarts = starts(binaryParents);
+		binaryByParent = groupBy(binaryParents, binaryParentStarts);
+	}
+
+	private void compileUnaryRules(Grammar grammar) {
+		List<UnaryRule> rules = grammar.getUnaryRules();
+		final int n = rules.size();
+		final int[] parents = new int[n], children = new int[n];
+		for (int r = 0; r < n; r++) {
+			UnaryRule rule = rules.get(r);
+			parents[r] = stateIndexer.indexOf(rule.getParent());
+			children[r] = stateIndexer.indexOf(rule.getChild());
+		}
+		Integer[] order = sortedOrder(n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (children[a] != children[b])
+					return children[a] < children[b] ? -1 : 1;
+				return parents[a] < parents[b] ? -1
+						: (parents[a] == parents[b] ? 0 : 1);
+			}
+		});
+		unaryParents = new int[n];
+		unaryChildren = new int[n];
+		unaryScores = new double[n];
+		unaryLookupScores = new double[n];
+		for (int r = 0; r < n; r++) {
+			UnaryRule rule = rules.get(order[r]);
+			unaryParents[r] = parents[order[r]];
+			unaryChildren[r] = children[order[r]];
+			unaryScores[r] = rule.getScore();
+			unaryLookupScores[r] = grammar.getUnaryScore(rule.getParent(),
+					rule.getChild());
+		}
+		unaryChildStarts = starts(unaryChildren);
+		unaryParentStarts = starts(unaryParents);
+		unaryByParent = groupBy(unaryParents, unaryParentStarts);
+	}
+
+	private static Integer[] sortedOrder(int n, Comparator<Integer> comparator) {
+		Integer[] order = new Integer[n];
+		for (int r = 0; r < n; r++) {
+			order[r] = r;
+		}
+		Arrays.sort(order, comparator);
+		return order;
+	}
+
+	/**
+	 * Offsets such that the entries with key s are counted in [starts[s],
+	 * starts[s+1]), which for sorted keys is the range holding them.
+	 */
+	private int[] starts(int[] keys) {
+		int[] starts = new int[numStates + 1];
+		for (int key : keys) {
+			starts[key + 1]++;
+		}
+		for (int s = 0; s < numStates; s++) {
+			starts[s + 1] += starts[s];
+		}
+		return starts;
+	}
+
+	/**
+	 * Rule ids grouped by key, keeping their order within each group.
+	 */
+	private static int[] groupBy(int[] keys, int[] starts) {
+		int[] next = Arrays.copyOf(starts, starts.length - 1);
+		int[] grouped = new int[keys.length];
+		for (int r = 0; r < keys.length; r++) {
+			grouped[next[keys[r]]++] = r;
+		}
+		return grouped;
+	}
+
+	public Indexer<String> getStateIndexer() {
+		return stateIndexer;
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	/**
+	 * Returns the id of the binary rule, or -1 if the grammar does not have it.
+	 */
+	public int indexOfBinaryRule(int parent, int left, int right) {
+		if (parent < 0 || left < 0 || right < 0)
+			return -1;
+		int low = binaryLeftStarts[left], high = binaryLeftStarts[left + 1] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int compare = binaryRights[middle] != right ? binaryRights[middle]
+					- right : binaryParents[middle] - parent;
+			if (compare < 0)
+				low = middle + 1;
+			else if (compare > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the id of the unary rule, or -1 if the grammar does not have it.
+	 */
+	public int indexOfUnaryRule(int parent, int child) {
+		if (parent < 0 || child < 0)
+			return -1;
+		int low = unaryChildStarts[child], high = unaryChildStarts[child + 1] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (unaryParents[middle] < parent)
+				low = middle + 1;
+			else if (unaryParents[middle] > parent)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Same as Grammar.getBinaryScore, on state ids.
+	 */
+	public double getBinaryScore(int parent, int left, int right) {
+		int rule = indexOfBinaryRule(parent, left, right);
+		return rule < 0 ? 0.0 : binaryLookupScores[rule];
+	}
+
+	/**
+	 * Same as Grammar.getUnaryScore, on state ids.
+	 */
+	public double getUnaryScore(int parent, int child) {
+		int rule = indexOfUnaryRule(parent, child);
+		return rule < 0 ? 0.0 : unaryLookupScores[rule];
+	}
+}
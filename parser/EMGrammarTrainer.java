@@ -1,6 +1,9 @@
 package nlp.parser;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -10,6 +13,12 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import nlp.ling.Tree;
 import nlp.parser.BinaryTree.TraverseAction;
@@ -17,6 +26,7 @@ import nlp.parser.Grammar.GrammarBuilder;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 import nlp.util.Counters;
+import nlp.util.Indexer;
 import nlp.util.Pair;
 
 public class EMGrammarTrainer implements GrammarBuilder {
@@ -26,11 +36,35 @@ public class EMGrammarTrainer implements GrammarBuilder {
 	Grammar baseGrammar;
 	SimpleLexicon baseLexicon;
 	List<Tree<String>> trainTrees;
-	public static long[] randomSeeds = new long[] { 3, 11, 1, 1 };
+	Settings settings;
 	static int[] EMTrainingTimes = new int[] { 20, 20, 1, 1 };
+	static int SMCycles = 2;
+	ExecutorService workers;
+
+	/**
+	 * The options of one trainer, so that trainers with different seeds can
+	 * run at the same time.
+	 */
+	public static class Settings {
+		// seeds of the split randomization, one per SM cycle
+		public long[] randomSeeds = new long[] { 3, 11, 1, 1 };
+		// threads for the E-step, 1 runs it on the calling thread
+		public int numThreads = 1;
+		// if set, a checkpoint is written there at the start of every cycle
+		// and after every checkpointInterval EM iterations
+		public String checkpointDirectory;
+		public int checkpointInterval = 5;
+		// a checkpoint file to resume training from
+		public String resumeCheckpoint;
+	}
 
 	public EMGrammarTrainer(List<Tree<String>> trainTrees) {
+		this(trainTrees, new Settings());
+	}
+
+	public EMGrammarTrainer(List<Tree<String>> trainTrees, Settings settings) {
 		this.trainTrees = trainTrees;
+		this.settings = settings;
 	}
 
 	public void train() {
@@ -46,13 +80,39 @@ public class EMGrammarTrainer implements GrammarBuilder {
 		// WordTagDump dump = new
 		// WordTagDump(pair.getSecond().wordToTagCounters);
 		// System.out.println(dump.getPopularWords("DT"));
-		for (int smcycle = 0; smcycle < 2; smcycle++) {
-			System.out.println("SM cycle " + smcycle);
-			// if (smcycle > 0 && randomSeeds[smcycle] != randomSeeds[smcycle -
-			// 1])
-			GrammarSpliter.random = new Random(randomSeeds[smcycle]);
-			pair = trainGrammar(smcycle, pair.getFirst(), pair.getSecond());
-			System.out.println("SM cycle " + smcycle + " done.\n");
+		if (settings.numThreads > 1) {
+			workers = Executors.newFixedThreadPool(settings.numThreads,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "em-worker");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		TrainingCheckpoint resume = null;
+		if (settings.resumeCheckpoint != null) {
+			resume = readCheckpoint(settings.resumeCheckpoint);
+			pair = new Pair<Grammar, SimpleLexicon>(resume.cycleGrammar,
+					resume.cycleLexicon);
+		}
+		try {
+			for (int smcycle = resume == null ? 0 : resume.cycle; smcycle < SMCycles; smcycle++) {
+				System.out.println("SM cycle " + smcycle);
+				// if (smcycle > 0 && randomSeeds[smcycle] !=
+				// randomSeeds[smcycle - 1])
+				pair = trainGrammar(smcycle, pair.getFirst(), pair.getSecond(),
+						resume != null && resume.cycle == smcycle ? resume
+								: null);
+				System.out.println("SM cycle " + smcycle + " done.\n");
+			}
+			writeCheckpoint(new TrainingCheckpoint(SMCycles, 0, 0, 0,
+					pair.getFirst(), pair.getSecond(), null, null));
+		} finally {
+			if (workers != null)
+				workers.shutdown();
+			workers = null;
 		}
 		// only once
 		finalGrammar = pair.getFirst();
@@ -61,30 +121,94 @@ public class EMGrammarTrainer implements GrammarBuilder {
 		finalLexicon = pair.getSecond().buildLexicon();
 	}
 
+	private TrainingCheckpoint readCheckpoint(String fileName) {
+		System.out.print("Reading checkpoint " + fileName + " ... ");
+		TrainingCheckpoint checkpoint;
+		try {
+			checkpoint = TrainingCheckpoint.read(fileName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("done. (cycle " + checkpoint.cycle
+				+ ", EM iteration " + checkpoint.iteration + ")");
+		return checkpoint;
+	}
+
+	private void writeCheckpoint(TrainingCheckpoint checkpoint) {
+		if (settings.checkpointDirectory == null)
+			return;
+		new File(settings.checkpointDirectory).mkdirs();
+		String fileName = TrainingCheckpoint.getFileName(
+				settings.checkpointDirectory, checkpoint.cycle,
+				checkpoint.iteration);
+		try {
+			checkpoint.write(fileName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("Wrote checkpoint " + fileName);
+	}
+
+	/**
+	 * Split the grammar, run EM and merge. With a checkpoint of this cycle,
+	 * EM continues from the checkpointed grammar and lexicon; the checkpoint
+	 * must then have been split with the same seed, and the split is checked
+	 * against its digest, so a resumed run continues exactly like the
+	 * interrupted one. A checkpoint taken at the start of the cycle can be
+	 * resumed with any seed.
+	 */
 	private Pair<Grammar, SimpleLexicon> trainGrammar(int cycle,
-			Grammar grammar, SimpleLexicon lexicon) {
+			Grammar grammar, SimpleLexicon lexicon, TrainingCheckpoint resume) {
+		long seed = settings.randomSeeds[cycle];
 		// 1.2 Split the initial training grammar by half all its probabilities
 		// build initial even grammar and lexicon
 		// System.out.println(grammar.toString());
-		GrammarSpliter spliter = new GrammarSpliter(grammar, lexicon);
+		GrammarSpliter spliter = new GrammarSpliter(grammar, lexicon,
+				new Random(seed));
 		Grammar splitGrammar = spliter.getNewGrammar();
 		SimpleLexicon splitlexicon = spliter.getNewLexicon();
+		long splitDigest = spliter.getDigest();
 		// System.out.println(lexicon.toString());
+		if (resume != null && resume.seed == seed
+				&& resume.splitDigest != splitDigest)
+			throw new RuntimeException("Checkpoint of cycle " + cycle
+					+ " was split differently with the same seed " + seed);
+		if (resume == null || resume.isCycleStart()) {
+			writeCheckpoint(new TrainingCheckpoint(cycle, 0, seed, splitDigest,
+					grammar, lexicon, null, null));
+		}
 
 		// 1.3 Build binary tree
 		List<BinaryTree<String>> binaryTrees = buildBinaryTree(trainTrees,
 				spliter);
 
+		int firstIteration = 0;
+		if (resume != null && !resume.isCycleStart()) {
+			if (resume.seed != seed)
+				throw new RuntimeException("Checkpoint was split with seed "
+						+ resume.seed + ", not " + seed);
+			splitGrammar = resume.grammar;
+			splitlexicon = resume.lexicon;
+			firstIteration = resume.iteration;
+		}
+
 		// 2. EM training
-		for (int emtrainingtimes = 0; emtrainingtimes < EMTrainingTimes[cycle]; emtrainingtimes++) {
+		for (int emtrainingtimes = firstIteration; emtrainingtimes < EMTrainingTimes[cycle]; emtrainingtimes++) {
 			System.out.println("EM iteration: " + emtrainingtimes);
 			GrammarTrainingHelper helper = new GrammarTrainingHelper(
 					splitGrammar, splitlexicon, spliter, baseGrammar,
-					baseLexicon);
+					baseLexicon, workers);
 			// loop for all trees
 			helper.trainOnce(binaryTrees);
 			splitGrammar = helper.getNewGrammar();
 			splitlexicon = helper.getNewLexicon();
+			int done = emtrainingtimes + 1;
+			if (done % settings.checkpointInterval == 0
+					&& done < EMTrainingTimes[cycle]) {
+				writeCheckpoint(new TrainingCheckpoint(cycle, done, seed,
+						splitDigest, grammar, lexicon, splitGrammar,
+						splitlexicon));
+			}
 		}
 
 		// WordTagDump dump2 = new WordTagDump(splitlexicon.wordToTagCounters);
@@ -95,18 +219,10 @@ public class EMGrammarTrainer implements GrammarBuilder {
 			// 3. Merge
 			// 3.1 measure merge loss
 			System.out.print("Merging ... ");
-			RelativeProbabilityComputer relativeProbabilityComputer = new RelativeProbabilityComputer();
-			for (BinaryTree<String> binaryTree : binaryTrees) {
-				binaryTree.preOrdertraverse(relativeProbabilityComputer);
-			}
-			MergeLossMeasurer mergeLossMeasurer = new MergeLossMeasurer(
-					relativeProbabilityComputer.getObservationCounter());
-			for (BinaryTree<String> binaryTree : binaryTrees) {
-				binaryTree.preOrdertraverse(mergeLossMeasurer);
-			}
-			Set<String> mergeSet = mergeLossMeasurer.getMergeSet();
-			splitGrammar = mergeGrammar(splitGrammar, mergeSet);
-			splitlexicon = mergeLexicon(splitlexicon, mergeSet);
+			Set<String> mergeSet = computeMergeSet(binaryTrees, spliter);
+			String[] mergedStates = spliter.getMergedStates(mergeSet);
+			splitGrammar = mergeGrammar(splitGrammar, spliter, mergedStates);
+			splitlexicon = mergeLexicon(splitlexicon, spliter, mergedStates);
 			System.out.println(" done.");
 		}
 
@@ -116,35 +232,36 @@ public class EMGrammarTrainer implements GrammarBuilder {
 	}
 
 	private SimpleLexicon mergeLexicon(SimpleLexicon oldLexicon,
-			Set<String> mergeSet) {
+			GrammarSpliter spliter, String[] mergedStates) {
 		CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
 		for (String word : oldLexicon.wordToTagCounters.keySet()) {
 			Counter<String> vCounter = oldLexicon.wordToTagCounters
 					.getCounter(word);
 			for (String tag : vCounter.keySet()) {
-				String original = GrammarSpliter.getOriginalState(tag);
-				if (mergeSet.contains(original)) {
-					wordToTagCounters.incrementCount(word, original,
-							vCounter.getCount(tag));
-				} else {
-					wordToTagCounters.incrementCount(word, tag,
-							vCounter.getCount(tag));
-				}
+				wordToTagCounters.incrementCount(word,
+						getMergedState(tag, spliter, mergedStates),
+						vCounter.getCount(tag));
 			}
 		}
 		return new SimpleLexicon(wordToTagCounters);
 	}
 
-	private Grammar mergeGrammar(Grammar oldGrammar, Set<String> mergeSet) {
+	/**
+	 * Merge the split grammar, given the merged state of every split state
+	 * id from GrammarSpliter.getMergedStates.
+	 */
+	private Grammar mergeGrammar(Grammar oldGrammar, GrammarSpliter spliter,
+			String[] mergedStates) {
 		Counter<UnaryRule> unaryCounter = new Counter<UnaryRule>();
 		Counter<BinaryRule> binaryCounter = new Counter<BinaryRule>();
 		for (UnaryRule unaryRule : oldGrammar.unaryRuleCounter.keySet()) {
-			UnaryRule newRule = getOriginalRule(unaryRule, mergeSet);
+			UnaryRule newRule = getMergedRule(unaryRule, spliter, mergedStates);
 			unaryCounter.incrementCount(newRule,
 					oldGrammar.unaryRuleCounter.getCount(unaryRule));
 		}
 		for (BinaryRule binaryRule : oldGrammar.binaryRuleCounter.keySet()) {
-			BinaryRule newRule = getOriginalRule(binaryRule, mergeSet);
+			BinaryRule newRule = getMergedRule(binaryRule, spliter,
+					mergedStates);
 			binaryCounter.incrementCount(newRule,
 					oldGrammar.binaryRuleCounter.getCount(binaryRule));
 		}
@@ -180,61 +297,211 @@ public class EMGrammarTrainer implements GrammarBuilder {
 		return new Grammar(unaryCounter, binaryCounter, false);
 	}
 
-	private static UnaryRule getOriginalRule(UnaryRule unaryRule,
-			Set<String> mergeSet) {
-		String oParent = GrammarSpliter.getOriginalState(unaryRule.getParent());
-		String oChild = GrammarSpliter.getOriginalState(unaryRule.getChild());
-		String p, c;
-		p = mergeSet.contains(oParent) ? oParent : unaryRule.getParent();
-		c = mergeSet.contains(oChild) ? oChild : unaryRule.getChild();
-		return new UnaryRule(p, c);
+	private static String getMergedState(String state,
+			GrammarSpliter spliter, String[] mergedStates) {
+		String merged = mergedStates[spliter.getStateId(state)];
+		return merged != null ? merged : state;
 	}
 
-	static BinaryRule getOriginalRule(BinaryRule binaryRule,
-			Set<String> mergeSet) {
-		String oParent = GrammarSpliter
-				.getOriginalState(binaryRule.getParent());
-		String oleft = GrammarSpliter.getOriginalState(binaryRule
-				.getLeftChild());
-		String oright = GrammarSpliter.getOriginalState(binaryRule
-				.getRightChild());
-		String p, l, r;
-		p = mergeSet.contains(oParent) ? oParent : binaryRule.getParent();
-		l = mergeSet.contains(oleft) ? oleft : binaryRule.getLeftChild();
-		r = mergeSet.contains(oright) ? oright : binaryRule.getRightChild();
-		return new BinaryRule(p, l, r);
+	private static UnaryRule getMergedRule(UnaryRule unaryRule,
+			GrammarSpliter spliter, String[] mergedStates) {
+		return new UnaryRule(getMergedState(unaryRule.getParent(), spliter,
+				mergedStates), getMergedState(unaryRule.getChild(), spliter,
+				mergedStates));
 	}
 
+	static BinaryRule getMergedRule(BinaryRule binaryRule,
+			GrammarSpliter spliter, String[] mergedStates) {
+		return new BinaryRule(getMergedState(binaryRule.getParent(), spliter,
+				mergedStates), getMergedState(binaryRule.getLeftChild(),
+				spliter, mergedStates), getMergedState(
+				binaryRule.getRightChild(), spliter, mergedStates));
+	}
+
+	/**
+	 * Measure the merge loss of every split on the in and out scores of the
+	 * last E-step and return the states to merge back. Both passes run on
+	 * shards of trees, on the workers if there are any, and the per-state
+	 * arrays of the shards are combined in shard order.
+	 */
+	private Set<String> computeMergeSet(List<BinaryTree<String>> binaryTrees,
+			final GrammarSpliter spliter) {
+		final int numStates = spliter.getStateIndexer().size();
+		List<List<BinaryTree<String>>> shards = getShards(binaryTrees);
+		List<Callable<RelativeProbabilityComputer>> observationTasks = new ArrayList<Callable<RelativeProbabilityComputer>>();
+		for (final List<BinaryTree<String>> shard : shards) {
+			observationTasks.add(new Callable<RelativeProbabilityComputer>() {
+				@Override
+				public RelativeProbabilityComputer call() {
+					RelativeProbabilityComputer computer = new RelativeProbabilityComputer(
+							numStates);
+					for (BinaryTree<String> binaryTree : shard) {
+						binaryTree.preOrdertraverse(computer);
+					}
+					return computer;
+				}
+			});
+		}
+		final double[] observations = new double[numStates];
+		for (RelativeProbabilityComputer computer : invokeInOrder(observationTasks)) {
+			for (int state = 0; state < numStates; state++) {
+				observations[state] += computer.observations[state];
+			}
+		}
+
+		List<Callable<MergeLossMeasurer>> lossTasks = new ArrayList<Callable<MergeLossMeasurer>>();
+		for (final List<BinaryTree<String>> shard : shards) {
+			lossTasks.add(new Callable<MergeLossMeasurer>() {
+				@Override
+				public MergeLossMeasurer call() {
+					MergeLossMeasurer measurer = new MergeLossMeasurer(
+							observations, spliter.otherIds);
+					for (BinaryTree<String> binaryTree : shard) {
+						binaryTree.preOrdertraverse(measurer);
+					}
+					return measurer;
+				}
+			});
+		}
+		double[] losses = new double[numStates];
+		Arrays.fill(losses, 1.0);
+		boolean[] measured = new boolean[numStates];
+		for (MergeLossMeasurer measurer : invokeInOrder(lossTasks)) {
+			for (int state = 0; state < numStates; state++) {
+				if (measurer.measured[state]) {
+					losses[state] = MergeLossMeasurer.multiplyLoss(
+							losses[state], measurer.losses[state]);
+					measured[state] = true;
+				}
+			}
+		}
+		Map<String, Double> lossMap = new HashMap<String, Double>();
+		for (int state = 0; state < numStates; state++) {
+			if (measured[state])
+				lossMap.put(spliter.originalStates[state], losses[state]);
+		}
+		return getMergeSet(lossMap);
+	}
+
+	/**
+	 * One shard of all trees without workers, so that a serial run adds up in
+	 * tree order, otherwise shards of SHARD_SIZE consecutive trees.
+	 */
+	private List<List<BinaryTree<String>>> getShards(
+			List<BinaryTree<String>> binaryTrees) {
+		List<List<BinaryTree<String>>> shards = new ArrayList<List<BinaryTree<String>>>();
+		if (workers == null) {
+			shards.add(binaryTrees);
+			return shards;
+		}
+		int shardSize = GrammarTrainingHelper.SHARD_SIZE;
+		for (int start = 0; start < binaryTrees.size(); start += shardSize) {
+			shards.add(binaryTrees.subList(start,
+					Math.min(start + shardSize, binaryTrees.size())));
+		}
+		return shards;
+	}
+
+	/**
+	 * Run the tasks, on the workers if there are any, and return their
+	 * results in task order.
+	 */
+	private <T> List<T> invokeInOrder(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (workers == null) {
+				for (Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			} else {
+				for (Future<T> future : workers.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Merge back the half of the split states whose merge loses the least
+	 * likelihood, i.e. keeps the largest likelihood ratio.
+	 */
+	static Set<String> getMergeSet(Map<String, Double> lossMap) {
+		List<Entry<String, Double>> entryList = new ArrayList<Map.Entry<String, Double>>(
+				lossMap.entrySet());
+		Collections.sort(entryList, new Comparator<Entry<String, Double>>() {
+			@Override
+			public int compare(Entry<String, Double> o1,
+					Entry<String, Double> o2) {
+				if (o1.getValue() > o2.getValue()) {
+					return -1;
+				} else if (o1.getValue() < o2.getValue()) {
+					return 1;
+				} else
+					return 0;
+			}
+		});
+		int size = entryList.size() / 2;
+		Set<String> mergeSet = new HashSet<String>(size * 2);
+		for (int i = 0; i < size; i++) {
+			mergeSet.add(entryList.get(i).getKey());
+		}
+		return mergeSet;
+	}
+
+	/**
+	 * Sums in * out of every split state over the trees, by state id.
+	 */
 	static class RelativeProbabilityComputer implements TraverseAction<String> {
-		private Counter<String> observationCounter = new Counter<String>();
+		double[] observations;
+
+		public RelativeProbabilityComputer(int numStates) {
+			observations = new double[numStates];
+		}
 
 		@Override
 		public void act(BinaryTree<String> tree) {
 			if (tree.isLeaf()) {
 				return;
 			}
-			for (int i = 0; i < tree.lableSize(); i++) {
-				double observation = tree.getIn(i) * tree.getOut(i);
-				observationCounter
-						.incrementCount(tree.getLabel(i), observation);
+			int[] ids = tree.stateIds;
+			for (int i = 0; i < ids.length; i++) {
+				observations[ids[i]] += Math.scalb(tree.inScores[i]
+						* tree.outScores[i], tree.inScale + tree.outScale);
 			}
 		}
-
-		public Counter<String> getObservationCounter() {
-			return observationCounter;
-		}
-
-		public void setObservationCounter(Counter<String> observationCounter) {
-			this.observationCounter = observationCounter;
-		}
 	}
 
+	/**
+	 * Multiplies up, over the trees, the likelihood ratio of merging each
+	 * split pair back, by the smaller state id of the pair.
+	 */
 	static class MergeLossMeasurer implements TraverseAction<String> {
-		Counter<String> observationCounter;
-		private Map<String, Double> lossMap = new HashMap<String, Double>();
+		double[] observations;
+		int[] otherIds;
+		double[] losses;
+		boolean[] measured;
 
-		public MergeLossMeasurer(Counter<String> observationCounter) {
-			this.observationCounter = observationCounter;
+		public MergeLossMeasurer(double[] observations, int[] otherIds) {
+			this.observations = observations;
+			this.otherIds = otherIds;
+			losses = new double[observations.length];
+			Arrays.fill(losses, 1.0);
+			measured = new boolean[observations.length];
+		}
+
+		static double multiplyLoss(double loss, double ratio) {
+			double d = loss * ratio;
+			return Double.isNaN(d) ? 0.0 : d;
 		}
 
 		@Override
@@ -245,101 +512,89 @@ public class EMGrammarTrainer implements GrammarBuilder {
 			if (tree.getBaseLabel().equals("ROOT")) {
 				return;
 			}
+			// the ratios do not depend on the scale of in and out
+			int[] ids = tree.stateIds;
+			double[] in = tree.inScores, out = tree.outScores;
 			double sum = 0;
-			for (int i = 0; i < tree.lableSize(); i++) {
-				double observation = tree.getIn(i) * tree.getOut(i);
-				sum += observation;
+			for (int i = 0; i < ids.length; i++) {
+				sum += in[i] * out[i];
 			}
-			boolean[] mark = new boolean[tree.lableSize()];
-			for (int i = 0; i < tree.lableSize(); i++) {
+			boolean[] mark = new boolean[ids.length];
+			for (int i = 0; i < ids.length; i++) {
 				if (mark[i]) {
 					continue;
 				}
-				String lable1 = tree.getLabel(i), label2 = GrammarSpliter
-						.getOtherLabel(lable1);
-				// find label2
+				// find the other half of the split
 				int j = -1;
-				for (int k = i + 1; k < tree.lableSize(); k++) {
-					if (tree.getLabel(k).equals(label2)) {
+				for (int k = i + 1; k < ids.length; k++) {
+					if (ids[k] == otherIds[ids[i]]) {
 						j = k;
 						break;
 					}
 				}
 				assert j >= 0;
 				double newsum = sum, unsplitIn, unsplitOut, c1, c2;
-				c1 = observationCounter.getCount(tree.getLabel(i));
-				c2 = observationCounter.getCount(tree.getLabel(j));
-				unsplitIn = (c1 * tree.getIn(i) + c2 * tree.getIn(j))
-						/ (c1 + c2);
-				unsplitOut = tree.getOut(i) + tree.getOut(j);
-				newsum -= tree.getIn(i) * tree.getOut(i);
-				newsum -= tree.getIn(j) * tree.getOut(j);
+				c1 = observations[ids[i]];
+				c2 = observations[ids[j]];
+				unsplitIn = (c1 * in[i] + c2 * in[j]) / (c1 + c2);
+				unsplitOut = out[i] + out[j];
+				newsum -= in[i] * out[i];
+				newsum -= in[j] * out[j];
 				newsum += unsplitIn * unsplitOut;
-				String originalLabel = GrammarSpliter.getOriginalState(lable1);
-				Double d = lossMap.get(originalLabel);
-				if (newsum / sum > 2.0) {
-					int p = 1;
-					p = 2;
-				}
-				if (d == null) {
-					lossMap.put(originalLabel, newsum / sum);
-				} else {
-					d *= newsum / sum;
-					if (d.isNaN())
-						d = 0.0;
-					lossMap.put(originalLabel, d);
-				}
+				int pair = Math.min(ids[i], ids[j]);
 				// newsum / sum < 1
+				losses[pair] = multiplyLoss(losses[pair], newsum / sum);
+				measured[pair] = true;
 				mark[j] = true;
 			}
 		}
-
-		public Map<String, Double> getLossMap() {
-			return lossMap;
-		}
-
-		public Set<String> getMergeSet() {
-			List<Entry<String, Double>> entryList = new ArrayList<Map.Entry<String, Double>>(
-					lossMap.entrySet());
-			Collections.sort(entryList,
-					new Comparator<Entry<String, Double>>() {
-						@Override
-						public int compare(Entry<String, Double> o1,
-								Entry<String, Double> o2) {
-							if (o1.getValue() > o2.getValue()) {
-								return -1;
-							} else if (o1.getValue() < o2.getValue()) {
-								return 1;
-							} else
-								return 0;
-						}
-					});
-			int size = entryList.size() / 2;
-			Set<String> mergeSet = new HashSet<String>(size * 2);
-			for (int i = 0; i < size; i++) {
-				mergeSet.add(entryList.get(i).getKey());
-			}
-			return mergeSet;
-		}
 	}
 
 	static class GrammarTrainingHelper {
 		Grammar grammar;
+		CompiledGrammar compiled;
 		SimpleLexicon lexicon;
 		GrammarSpliter spliter;
 		Grammar newGrammar;
 		SimpleLexicon newLexicon;
 		Grammar unsplitGrammar;
 		SimpleLexicon unsplitLexicon;
+		// null for a serial E-step
+		ExecutorService workers;
+		// the unsplit grammar on the base state ids of the spliter, and its
+		// rule counts by rule id
+		CompiledGrammar compiledUnsplit;
+		double[] unsplitUnaryCounts, unsplitBinaryCounts;
 
 		public GrammarTrainingHelper(Grammar grammar, SimpleLexicon lexicon,
 				GrammarSpliter spliter, Grammar originalGrammar,
-				SimpleLexicon unsplitLexicon) {
+				SimpleLexicon unsplitLexicon, ExecutorService workers) {
 			this.grammar = grammar;
+			this.workers = workers;
+			this.compiled = new CompiledGrammar(grammar,
+					spliter.getStateIndexer());
 			this.lexicon = lexicon;
 			this.spliter = spliter;
 			this.unsplitGrammar = originalGrammar;
 			this.unsplitLexicon = unsplitLexicon;
+			compiledUnsplit = new CompiledGrammar(originalGrammar,
+					spliter.getBaseIndexer());
+			Indexer<String> baseIndexer = compiledUnsplit.getStateIndexer();
+			unsplitUnaryCounts = new double[compiledUnsplit.unaryParents.length];
+			for (int r = 0; r < unsplitUnaryCounts.length; r++) {
+				unsplitUnaryCounts[r] = originalGrammar.unaryRuleCounter
+						.getCount(new UnaryRule(baseIndexer
+								.get(compiledUnsplit.unaryParents[r]),
+								baseIndexer.get(compiledUnsplit.unaryChildren[r])));
+			}
+			unsplitBinaryCounts = new double[compiledUnsplit.binaryParents.length];
+			for (int r = 0; r < unsplitBinaryCounts.length; r++) {
+				unsplitBinaryCounts[r] = originalGrammar.binaryRuleCounter
+						.getCount(new BinaryRule(baseIndexer
+								.get(compiledUnsplit.binaryParents[r]),
+								baseIndexer.get(compiledUnsplit.binaryLefts[r]),
+								baseIndexer.get(compiledUnsplit.binaryRights[r])));
+			}
 		}
 
 		public Grammar getNewGrammar() {
@@ -351,24 +606,8 @@ public class EMGrammarTrainer implements GrammarBuilder {
 		}
 
 		public void trainOnce(List<BinaryTree<String>> binaryTrees) {
-			InProbabilityComputer inComputer = new InProbabilityComputer();
-			OutProbabilityComputer outComputer = new OutProbabilityComputer();
-			PosteriorProbabilityCounter posteriorCounter = new PosteriorProbabilityCounter();
-			// compute in probability
-			for (BinaryTree<String> binaryTree : binaryTrees) {
-				binaryTree.postOrdertraverse(inComputer);
-			}
-			// compute out probability
-			for (BinaryTree<String> binaryTree : binaryTrees) {
-				// binaryTree.outProbabilities
-				Collections.fill(binaryTree.outProbabilities,
-						1.0 / binaryTree.lableSize());
-				binaryTree.preOrdertraverse(outComputer);
-			}
-			// compute post probability
-			for (BinaryTree<String> binaryTree : binaryTrees) {
-				binaryTree.preOrdertraverse(posteriorCounter);
-			}
+			PosteriorProbabilityCounter posteriorCounter = workers == null ? computePosteriors(binaryTrees)
+					: computePosteriorsInParallel(binaryTrees);
 			normalizeGrammar(posteriorCounter);
 			posteriorCounter.binaryRuleCounter = Counters
 					.cleanCounter(posteriorCounter.binaryRuleCounter);
@@ -395,59 +634,155 @@ public class EMGrammarTrainer implements GrammarBuilder {
 			newLexicon = new SimpleLexicon(posteriorCounter.wordToTagCounters);
 		}
 
-		private void normalizeGrammar(PosteriorProbabilityCounter postCounter) {
-			Counter<UnaryRule> originalUnaryCounter = new Counter<UnaryRule>();
-			Counter<BinaryRule> originalBinaryCounter = new Counter<BinaryRule>();
-			for (UnaryRule unaryRule : postCounter.unaryRuleCounter.keySet()) {
-				originalUnaryCounter.incrementCount(getBaseRule(unaryRule),
-						postCounter.unaryRuleCounter.getCount(unaryRule));
+		/**
+		 * The E-step: in and out scores of every tree, and the expected rule
+		 * and tag counts they give.
+		 */
+		PosteriorProbabilityCounter computePosteriors(
+				List<BinaryTree<String>> binaryTrees) {
+			InProbabilityComputer inComputer = new InProbabilityComputer();
+			OutProbabilityComputer outComputer = new OutProbabilityComputer();
+			PosteriorProbabilityCounter posteriorCounter = new PosteriorProbabilityCounter();
+			// compute in probability
+			for (BinaryTree<String> binaryTree : binaryTrees) {
+				binaryTree.postOrdertraverse(inComputer);
 			}
-			for (BinaryRule binaryRule : postCounter.binaryRuleCounter.keySet()) {
-				originalBinaryCounter.incrementCount(getBaseRule(binaryRule),
-						postCounter.binaryRuleCounter.getCount(binaryRule));
+			// compute out probability
+			for (BinaryTree<String> binaryTree : binaryTrees) {
+				Arrays.fill(binaryTree.outScores, 1.0 / binaryTree.lableSize());
+				binaryTree.outScale = 0;
+				binaryTree.preOrdertraverse(outComputer);
 			}
-			for (UnaryRule unaryRule : postCounter.unaryRuleCounter.keySet()) {
-				UnaryRule original = getBaseRule(unaryRule);
-				postCounter.unaryRuleCounter.setCount(
-						unaryRule,
-						postCounter.unaryRuleCounter.getCount(unaryRule)
-								* unsplitGrammar.unaryRuleCounter
-										.getCount(original)
-								/ originalUnaryCounter.getCount(original));
+			// compute post probability
+			for (BinaryTree<String> binaryTree : binaryTrees) {
+				binaryTree.preOrdertraverse(posteriorCounter);
+			}
+			return posteriorCounter;
+		}
+
+		static final int SHARD_SIZE = 64;
+
+		/**
+		 * The E-step on shards of SHARD_SIZE consecutive trees, each with its
+		 * own accumulator. The shards are merged in order, so the counts do
+		 * not depend on the number of threads or on scheduling.
+		 */
+		private PosteriorProbabilityCounter computePosteriorsInParallel(
+				List<BinaryTree<String>> binaryTrees) {
+			List<Callable<PosteriorProbabilityCounter>> tasks = new ArrayList<Callable<PosteriorProbabilityCounter>>();
+			for (int start = 0; start < binaryTrees.size(); start += SHARD_SIZE) {
+				final List<BinaryTree<String>> shard = binaryTrees.subList(
+						start, Math.min(start + SHARD_SIZE, binaryTrees.size()));
+				tasks.add(new Callable<PosteriorProbabilityCounter>() {
+					@Override
+					public PosteriorProbabilityCounter call() {
+						return computePosteriors(shard);
+					}
+				});
+			}
+			PosteriorProbabilityCounter posteriorCounter = new PosteriorProbabilityCounter();
+			try {
+				for (Future<PosteriorProbabilityCounter> future : workers
+						.invokeAll(tasks)) {
+					posteriorCounter.addAll(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			return posteriorCounter;
+		}
 
+		/**
+		 * Scale the expected rule counts so that the substates of each base
+		 * rule add up to the count of the base rule in the unsplit grammar.
+		 */
+		private void normalizeGrammar(PosteriorProbabilityCounter postCounter) {
+			Counter<UnaryRule> unaryCounter = postCounter.unaryRuleCounter;
+			int[] unaryBaseRules = new int[unaryCounter.size()];
+			double[] unaryTotals = new double[unsplitUnaryCounts.length];
+			int r = 0;
+			for (UnaryRule unaryRule : unaryCounter.keySet()) {
+				int baseRule = getBaseRuleId(unaryRule);
+				unaryBaseRules[r++] = baseRule;
+				unaryTotals[baseRule] += unaryCounter.getCount(unaryRule);
 			}
-			for (BinaryRule binaryRule : postCounter.binaryRuleCounter.keySet()) {
-				BinaryRule originalRule = getBaseRule(binaryRule);
-				postCounter.binaryRuleCounter.setCount(
-						binaryRule,
-						postCounter.binaryRuleCounter.getCount(binaryRule)
-								* unsplitGrammar.binaryRuleCounter
-										.getCount(originalRule)
-								/ originalBinaryCounter.getCount(originalRule));
+			Counter<BinaryRule> binaryCounter = postCounter.binaryRuleCounter;
+			int[] binaryBaseRules = new int[binaryCounter.size()];
+			double[] binaryTotals = new double[unsplitBinaryCounts.length];
+			r = 0;
+			for (BinaryRule binaryRule : binaryCounter.keySet()) {
+				int baseRule = getBaseRuleId(binaryRule);
+				binaryBaseRules[r++] = baseRule;
+				binaryTotals[baseRule] += binaryCounter.getCount(binaryRule);
 			}
+			r = 0;
+			for (UnaryRule unaryRule : unaryCounter.keySet()) {
+				int baseRule = unaryBaseRules[r++];
+				unaryCounter.setCount(unaryRule,
+						unaryCounter.getCount(unaryRule)
+								* unsplitUnaryCounts[baseRule]
+								/ unaryTotals[baseRule]);
+			}
+			r = 0;
+			for (BinaryRule binaryRule : binaryCounter.keySet()) {
+				int baseRule = binaryBaseRules[r++];
+				binaryCounter.setCount(binaryRule,
+						binaryCounter.getCount(binaryRule)
+								* unsplitBinaryCounts[baseRule]
+								/ binaryTotals[baseRule]);
+			}
+		}
+
+		private int getBaseRuleId(UnaryRule unaryRule) {
+			int rule = compiledUnsplit.indexOfUnaryRule(
+					spliter.getBaseId(unaryRule.getParent()),
+					spliter.getBaseId(unaryRule.getChild()));
+			if (rule < 0)
+				throw new RuntimeException("No base rule for " + unaryRule);
+			return rule;
 		}
 
+		private int getBaseRuleId(BinaryRule binaryRule) {
+			int rule = compiledUnsplit.indexOfBinaryRule(
+					spliter.getBaseId(binaryRule.getParent()),
+					spliter.getBaseId(binaryRule.getLeftChild()),
+					spliter.getBaseId(binaryRule.getRightChild()));
+			if (rule < 0)
+				throw new RuntimeException("No base rule for " + binaryRule);
+			return rule;
+		}
+
+		/**
+		 * Scale the expected tag counts of each word so that the substates of
+		 * a tag add up to its count in the unsplit lexicon.
+		 */
 		private void normalizeLexicon(
 				CounterMap<String, String> wordToTagCounters) {
-			CounterMap<String, String> originalw2tCounters = new CounterMap<String, String>();
+			Indexer<String> baseIndexer = spliter.getBaseIndexer();
+			double[] totals = new double[baseIndexer.size()];
 			for (String word : wordToTagCounters.keySet()) {
 				Counter<String> vCounter = wordToTagCounters.getCounter(word);
+				int[] baseTags = new int[vCounter.size()];
+				int t = 0;
 				for (String tag : vCounter.keySet()) {
-					originalw2tCounters.incrementCount(word,
-							GrammarSpliter.getBaseState(tag),
-							vCounter.getCount(tag));
+					int baseTag = spliter.getBaseId(tag);
+					baseTags[t++] = baseTag;
+					totals[baseTag] += vCounter.getCount(tag);
 				}
-			}
-			for (String word : wordToTagCounters.keySet()) {
-				Counter<String> vCounter = wordToTagCounters.getCounter(word);
+				t = 0;
 				for (String tag : vCounter.keySet()) {
-					String originalTag = GrammarSpliter.getBaseState(tag);
+					int baseTag = baseTags[t++];
 					double score = vCounter.getCount(tag)
 							* unsplitLexicon.wordToTagCounters.getCount(word,
-									originalTag)
-							/ originalw2tCounters.getCount(word, originalTag);
+									baseIndexer.get(baseTag)) / totals[baseTag];
 					wordToTagCounters.setCount(word, tag, score);
 				}
+				for (int baseTag : baseTags) {
+					totals[baseTag] = 0.0;
+				}
 			}
 			// checkLexiconConsistency(wordToTagCounters);
 		}
@@ -537,43 +872,51 @@ public class EMGrammarTrainer implements GrammarBuilder {
 				if (tree.isLeaf()) {
 					return;
 				}
+				double[] in = tree.inScores;
 				if (tree.isPreTerminal()) { // tag
 					String word = tree.left.getBaseLabel();
-					for (int i = 0; i < tree.lableSize(); i++) {
-						String tag = tree.getLabel(i);
-						tree.SetIn(i, lexicon.relativeScore(word, tag));
+					for (int i = 0; i < in.length; i++) {
+						in[i] = lexicon.relativeScore(word, tree.getLabel(i));
 					}
+					tree.inScale = 0;
+					tree.rescaleIn();
 					return;
 				}
+				int[] ids = tree.stateIds;
+				BinaryTree<String> left = tree.left;
+				int[] leftIds = left.stateIds;
+				double[] leftIn = left.inScores;
 				if (tree.isUnary()) { // unary
-					for (int i = 0; i < tree.lableSize(); i++) {
-						String label = tree.getLabel(i);
+					for (int i = 0; i < in.length; i++) {
 						double sum = 0;
-						for (int j = 0; j < tree.left.lableSize(); j++) {
-							String childLabel = tree.left.getLabel(j);
-							sum += grammar.getUnaryScore(label, childLabel)
-									* tree.left.getIn(j);
+						for (int j = 0; j < leftIn.length; j++) {
+							sum += compiled.getUnaryScore(ids[i], leftIds[j])
+									* leftIn[j];
 						}
-						tree.SetIn(i, sum);
+						in[i] = sum;
 					}
+					tree.inScale = left.inScale;
+					tree.rescaleIn();
 					return;
 				}
 				// binary
-				for (int i = 0; i < tree.lableSize(); i++) {
-					String label = tree.getLabel(i);
+				BinaryTree<String> right = tree.right;
+				int[] rightIds = right.stateIds;
+				double[] rightIn = right.inScores;
+				for (int i = 0; i < in.length; i++) {
 					double sum = 0;
-					for (int j = 0; j < tree.left.lableSize(); j++) {
-						String leftLabel = tree.left.getLabel(j);
-						for (int k = 0; k < tree.right.lableSize(); k++) {
-							String rightLabel = tree.right.getLabel(k);
-							sum += grammar.getBinaryScore(label, leftLabel,
-									rightLabel)
-									* tree.left.getIn(j)
-									* tree.right.getIn(k);
+					for (int j = 0; j < leftIn.length; j++) {
+						for (int k = 0; k < rightIn.length; k++) {
+							sum += compiled.getBinaryScore(ids[i], leftIds[j],
+									rightIds[k])
+									* leftIn[j]
+									* rightIn[k];
 						}
 					}
-					tree.SetIn(i, sum);
+					in[i] = sum;
 				}
+				tree.inScale = left.inScale + right.inScale;
+				tree.rescaleIn();
 			}
 		}
 
@@ -585,42 +928,55 @@ public class EMGrammarTrainer implements GrammarBuilder {
 				if (tree.isLeaf() || tree.isPreTerminal()) {
 					return;
 				}
+				int[] ids = tree.stateIds;
+				double[] out = tree.outScores;
+				BinaryTree<String> left = tree.left;
+				int[] leftIds = left.stateIds;
 				if (tree.isUnary()) { // unary
-					BinaryTree<String> child = tree.left;
-					for (int j = 0; j < child.lableSize(); j++) {
+					double[] childOut = left.outScores;
+					for (int j = 0; j < childOut.length; j++) {
 						double sum = 0;
-						for (int i = 0; i < tree.lableSize(); i++) {
-							sum += grammar.getUnaryScore(tree.getLabel(i),
-									child.getLabel(j)) * tree.getOut(i);
+						for (int i = 0; i < out.length; i++) {
+							sum += compiled.getUnaryScore(ids[i], leftIds[j])
+									* out[i];
 						}
-						child.SetOut(j, sum);
+						childOut[j] = sum;
 					}
+					left.outScale = tree.outScale;
+					left.rescaleOut();
 					return;
 				}
 				// binary
-				BinaryTree<String> left = tree.left, right = tree.right;
-				for (int j = 0; j < left.lableSize(); j++) {
+				BinaryTree<String> right = tree.right;
+				int[] rightIds = right.stateIds;
+				double[] leftIn = left.inScores, rightIn = right.inScores;
+				double[] leftOut = left.outScores, rightOut = right.outScores;
+				for (int j = 0; j < leftOut.length; j++) {
 					double sum = 0;
-					for (int i = 0; i < tree.lableSize(); i++) {
-						for (int k = 0; k < right.lableSize(); k++) {
-							sum += grammar.getBinaryScore(tree.getLabel(i),
-									left.getLabel(j), right.getLabel(k))
-									* tree.getOut(i) * right.getIn(k);
+					for (int i = 0; i < out.length; i++) {
+						for (int k = 0; k < rightIn.length; k++) {
+							sum += compiled.getBinaryScore(ids[i], leftIds[j],
+									rightIds[k])
+									* out[i] * rightIn[k];
 						}
 					}
-					left.SetOut(j, sum);
+					leftOut[j] = sum;
 				}
-				for (int k = 0; k < right.lableSize(); k++) {
+				for (int k = 0; k < rightOut.length; k++) {
 					double sum = 0;
-					for (int i = 0; i < tree.lableSize(); i++) {
-						for (int j = 0; j < left.lableSize(); j++) {
-							sum += grammar.getBinaryScore(tree.getLabel(i),
-									left.getLabel(j), right.getLabel(k))
-									* tree.getOut(i) * left.getIn(j);
+					for (int i = 0; i < out.length; i++) {
+						for (int j = 0; j < leftIn.length; j++) {
+							sum += compiled.getBinaryScore(ids[i], leftIds[j],
+									rightIds[k])
+									* out[i] * leftIn[j];
 						}
 					}
-					right.SetOut(k, sum);
+					rightOut[k] = sum;
 				}
+				left.outScale = tree.outScale + right.inScale;
+				left.rescaleOut();
+				right.outScale = tree.outScale + left.inScale;
+				right.rescaleOut();
 			}
 		}
 
@@ -631,30 +987,53 @@ public class EMGrammarTrainer implements GrammarBuilder {
 			public Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
 			public CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
 
+			void addAll(PosteriorProbabilityCounter other) {
+				unaryRuleCounter.incrementAll(other.unaryRuleCounter);
+				binaryRuleCounter.incrementAll(other.binaryRuleCounter);
+				for (String word : other.wordToTagCounters.keySet()) {
+					Counter<String> vCounter = other.wordToTagCounters
+							.getCounter(word);
+					for (String tag : vCounter.keySet()) {
+						wordToTagCounters.incrementCount(word, tag,
+								vCounter.getCount(tag));
+					}
+				}
+			}
+
 			@Override
 			public void act(BinaryTree<String> tree) {
 				if (tree.isLeaf()) {
 					return;
 				}
+				// scores are computed on the scaled vectors, then scaled back
+				double[] out = tree.outScores;
 				if (tree.isPreTerminal()) { // tag
 					String word = tree.left.getBaseLabel();
-					for (int i = 0; i < tree.lableSize(); i++) {
+					for (int i = 0; i < out.length; i++) {
 						String tag = tree.getLabel(i);
-						double score = tree.getOut(i) * factor
-								* lexicon.relativeScore(word, tag);
-						if (score == Double.NaN)
+						double score = Math.scalb(
+								out[i] * factor
+										* lexicon.relativeScore(word, tag),
+								tree.outScale);
+						if (Double.isNaN(score))
 							score = 0.0;
 						wordToTagCounters.incrementCount(word, tag, score);
 					}
 				} else if (tree.isUnary()) { // unary
-					for (int i = 0; i < tree.lableSize(); i++) {
-						BinaryTree<String> child = tree.left;
-						for (int j = 0; j < child.lableSize(); j++) {
-							double score = tree.getOut(i)
-									* factor
-									* grammar.getUnaryScore(tree.getLabel(i),
-											child.getLabel(j)) * child.getIn(j);
-							if (score == Double.NaN)
+					int[] ids = tree.stateIds;
+					BinaryTree<String> child = tree.left;
+					int[] childIds = child.stateIds;
+					double[] childIn = child.inScores;
+					int scale = tree.outScale + child.inScale;
+					for (int i = 0; i < out.length; i++) {
+						for (int j = 0; j < childIn.length; j++) {
+							double score = Math.scalb(
+									out[i]
+											* factor
+											* compiled.getUnaryScore(ids[i],
+													childIds[j]) * childIn[j],
+									scale);
+							if (Double.isNaN(score))
 								score = 0.0;
 							unaryRuleCounter.incrementCount(
 									tree.makeUnaryRule(i, j), score);
@@ -662,18 +1041,21 @@ public class EMGrammarTrainer implements GrammarBuilder {
 					}
 					return;
 				} else { // binary
-					for (int i = 0; i < tree.lableSize(); i++) {
-						BinaryTree<String> left = tree.left, right = tree.right;
-						for (int j = 0; j < left.lableSize(); j++) {
-							for (int k = 0; k < right.lableSize(); k++) {
-								double score = tree.getOut(i)
+					BinaryTree<String> left = tree.left, right = tree.right;
+					int[] ids = tree.stateIds;
+					int[] leftIds = left.stateIds, rightIds = right.stateIds;
+					double[] leftIn = left.inScores, rightIn = right.inScores;
+					int scale = tree.outScale + left.inScale + right.inScale;
+					for (int i = 0; i < out.length; i++) {
+						for (int j = 0; j < leftIn.length; j++) {
+							for (int k = 0; k < rightIn.length; k++) {
+								double score = out[i]
 										* factor
-										* grammar.getBinaryScore(
-												tree.getLabel(i),
-												left.getLabel(j),
-												right.getLabel(k));
-								score *= left.getIn(j) * right.getIn(k);
-								if (score == Double.NaN)
+										* compiled.getBinaryScore(ids[i],
+												leftIds[j], rightIds[k]);
+								score *= leftIn[j] * rightIn[k];
+								score = Math.scalb(score, scale);
+								if (Double.isNaN(score))
 									score = 0.0;
 								binaryRuleCounter.incrementCount(
 										tree.makeBinaryRule(i, j, k), score);
@@ -685,7 +1067,7 @@ public class EMGrammarTrainer implements GrammarBuilder {
 		}
 	}
 
-	private static List<BinaryTree<String>> buildBinaryTree(
+	static List<BinaryTree<String>> buildBinaryTree(
 			List<Tree<String>> trainningTrees, GrammarSpliter spliter) {
 		List<BinaryTree<String>> bTrees = new ArrayList<BinaryTree<String>>(
 				trainningTrees.size());
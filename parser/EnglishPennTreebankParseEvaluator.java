@@ -34,8 +34,8 @@ public class EnglishPennTreebankParseEvaluator<L> {
 
     /* evaluates precision and recall by calling makeObjects() to make a
      * set of structures for guess Tree and gold Tree, and compares them
-     * with each other.  */
-    public void evaluate(Tree<L> guess, Tree<L> gold, PrintWriter pw) {
+     * with each other.  Synchronized so parsing threads can share one eval. */
+    public synchronized void evaluate(Tree<L> guess, Tree<L> gold, PrintWriter pw) {
       Set<Object> guessedSet = makeObjects(guess);
       Set<Object> goldSet = makeObjects(gold);
       Set<Object> correctSet = new HashSet<Object>();
@@ -76,9 +76,20 @@ public class EnglishPennTreebankParseEvaluator<L> {
       display(verbose, new PrintWriter(System.out, true));
     }
 
-    public void display(boolean verbose, PrintWriter pw) {
+    public synchronized void display(boolean verbose, PrintWriter pw) {
       displayPRF(str+" [Average] ", correctEvents, guessedEvents, goldEvents, exact, total, pw);
     }
+
+    /* the averaged F1 and exact match so far, for callers that print their own summary */
+    public synchronized double getF1() {
+      double precision = (guessedEvents > 0 ? correctEvents / (double) guessedEvents : 1.0);
+      double recall = (goldEvents > 0 ? correctEvents / (double) goldEvents : 1.0);
+      return (precision > 0.0 && recall > 0.0 ? 2.0 / (1.0 / precision + 1.0 / recall) : 0.0);
+    }
+
+    public synchronized double getExactMatch() {
+      return exact / (double) total;
+    }
   }
 
   static class LabeledConstituent<L> {
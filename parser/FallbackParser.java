@@ -0,0 +1,72 @@
+package nlp.parser;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+import nlp.util.Pair;
+
+/**
+ * Parses with an array chart parser under its per-sentence budget (see
+ * ArrayCKYParser.setBudget), and parses the sentences running over it again
+ * with a cheaper fallback parser, such as BaselineParser or an ArrayCKYParser
+ * with a narrow beam. This bounds the time a worker spends on one long
+ * sentence, at the price of a worse parse for it. Fallbacks are counted in
+ * the ParseStats of the parser, if it has one. Concurrent calls are safe if
+ * both parsers allow them.
+ */
+public class FallbackParser implements Parser {
+	public enum Path {
+		PRIMARY, FALLBACK
+	}
+
+	ArrayCKYParser parser;
+	Parser fallback;
+	AtomicLong primaryParses = new AtomicLong();
+	AtomicLong fallbackParses = new AtomicLong();
+
+	public FallbackParser(ArrayCKYParser parser, Parser fallback) {
+		this.parser = parser;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public Tree<String> getBestParse(List<String> sentence) {
+		return parse(sentence).getFirst();
+	}
+
+	/**
+	 * The best parse of the sentence and the parser that produced it.
+	 */
+	public Pair<Tree<String>, Path> parse(List<String> sentence) {
+		try {
+			Tree<String> tree = parser.getBestParse(sentence);
+			primaryParses.incrementAndGet();
+			return new Pair<Tree<String>, Path>(tree, Path.PRIMARY);
+		} catch (ParseBudget.Exceeded e) {
+			fallbackParses.incrementAndGet();
+			if (parser.getStats() != null)
+				parser.getStats().recordFallback(sentence.size());
+			return new Pair<Tree<String>, Path>(
+					fallback.getBestParse(sentence), Path.FALLBACK);
+		}
+	}
+
+	public ArrayCKYParser getParser() {
+		return parser;
+	}
+
+	public long getPrimaryParses() {
+		return primaryParses.get();
+	}
+
+	public long getFallbackParses() {
+		return fallbackParses.get();
+	}
+
+	@Override
+	public String toString() {
+		return primaryParses.get() + " parsed within budget, "
+				+ fallbackParses.get() + " by the fallback parser";
+	}
+}
@@ -128,6 +128,40 @@ public class Grammar {
 	protected Grammar() {
 	}
 
+	/**
+	 * An empty grammar to be filled by restoreBinaryRule / restoreUnaryRule,
+	 * used when loading a ModelSnapshot.
+	 */
+	Grammar(boolean isFull) {
+		full = isFull;
+	}
+
+	void restoreBinaryRule(BinaryRule binaryRule, double count,
+			double lookupScore) {
+		binaryRuleCounter.setCount(binaryRule, count);
+		if (!full) {
+			binaryRulesMap.put(binaryRule, lookupScore);
+		}
+		addBinary(binaryRule);
+	}
+
+	void restoreUnaryRule(UnaryRule unaryRule, double count, double lookupScore) {
+		unaryRuleCounter.setCount(unaryRule, count);
+		if (!full) {
+			unaryRulesMap.put(unaryRule, lookupScore);
+		}
+		addUnary(unaryRule);
+	}
+
+	/**
+	 * Whether becomeFull() has been called on a grammar built without lookup
+	 * tables.
+	 */
+	boolean hasLookupTables() {
+		return full || !binaryRulesByLeftChild.isEmpty()
+				|| !unaryRulesByParent.isEmpty();
+	}
+
 	/**
 	 * Construct a grammar with binary, unary rules. Set the probability as
 	 * relative frequency.
@@ -2,6 +2,7 @@ package nlp.parser;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,15 +12,57 @@ import java.util.Set;
 import nlp.util.CollectionUtils;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.Indexer;
 
 public class GrammarSpliter {
 	Map<String, List<String>> stateVariance;
+	// split states numbered in sorted order, and the ids of stateVariance
+	Indexer<String> stateIndexer;
+	Map<String, int[]> stateVarianceIds;
+	// by split state id: the id of its base state in baseIndexer, its
+	// substate number (0 if not split), the state it merges back into and
+	// the id of the other half of its split (-1 if none)
+	Indexer<String> baseIndexer;
+	int[] baseIds;
+	int[] substates;
+	String[] originalStates;
+	int[] otherIds;
 	Grammar newGrammar;
 	SimpleLexicon newLexicon;
 	final static char LableMark = '^';
 	Map<String, List<String>> splitMap;
 
-	public GrammarSpliter(Grammar grammar, SimpleLexicon lexicon) {
+	Random random;
+
+	// rules and words are split in these orders, so the random draws depend
+	// only on the seed and the model, not on the order of its hash maps
+	static final Comparator<BinaryRule> BINARY_RULE_ORDER = new Comparator<BinaryRule>() {
+		@Override
+		public int compare(BinaryRule a, BinaryRule b) {
+			int c = a.getParent().compareTo(b.getParent());
+			if (c == 0)
+				c = a.getLeftChild().compareTo(b.getLeftChild());
+			if (c == 0)
+				c = a.getRightChild().compareTo(b.getRightChild());
+			return c;
+		}
+	};
+	static final Comparator<UnaryRule> UNARY_RULE_ORDER = new Comparator<UnaryRule>() {
+		@Override
+		public int compare(UnaryRule a, UnaryRule b) {
+			int c = a.getParent().compareTo(b.getParent());
+			return c != 0 ? c : a.getChild().compareTo(b.getChild());
+		}
+	};
+
+	/**
+	 * Split all states of the grammar and lexicon in two, perturbing the
+	 * split scores with the given random generator. Rules and words are
+	 * split in sorted order, so the same generator seed splits equal models
+	 * equally, however they were built or loaded.
+	 */
+	public GrammarSpliter(Grammar grammar, SimpleLexicon lexicon, Random random) {
+		this.random = random;
 		splitMap = splitStates(grammar.getStates());
 		splitOldGrammar(grammar);
 		buildGrammarVariance();
@@ -38,6 +81,14 @@ public class GrammarSpliter {
 		return stateVariance.get(state);
 	}
 
+	public int[] getVarianceIds(String state) {
+		return stateVarianceIds.get(state);
+	}
+
+	public Indexer<String> getStateIndexer() {
+		return stateIndexer;
+	}
+
 	public List<String> getSplitResult(String state) {
 		return splitMap.get(state);
 	}
@@ -48,6 +99,65 @@ public class GrammarSpliter {
 			CollectionUtils.addToValueList(stateVariance, getBaseState(state),
 					state);
 		}
+		stateIndexer = new Indexer<String>(CollectionUtils.sort(newGrammar
+				.getStates()));
+		stateVarianceIds = new HashMap<String, int[]>(stateVariance.size());
+		for (Map.Entry<String, List<String>> entry : stateVariance.entrySet()) {
+			List<String> variance = entry.getValue();
+			int[] ids = new int[variance.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = stateIndexer.indexOf(variance.get(i));
+			}
+			stateVarianceIds.put(entry.getKey(), ids);
+		}
+		baseIndexer = new Indexer<String>(CollectionUtils.sort(stateVariance
+				.keySet()));
+		int numStates = stateIndexer.size();
+		baseIds = new int[numStates];
+		substates = new int[numStates];
+		originalStates = new String[numStates];
+		otherIds = new int[numStates];
+		for (int id = 0; id < numStates; id++) {
+			String state = stateIndexer.get(id);
+			String baseState = getBaseState(state);
+			baseIds[id] = baseIndexer.indexOf(baseState);
+			substates[id] = getSubstate(state);
+			originalStates[id] = substates[id] == 0 ? state : makeState(
+					baseState, (substates[id] - 1) / 2);
+			otherIds[id] = substates[id] == 0 ? -1 : stateIndexer
+					.indexOf(getOtherLabel(state));
+		}
+	}
+
+	/**
+	 * The id of a split state, -1 if it is not a state of the split grammar.
+	 */
+	public int getStateId(String state) {
+		return stateIndexer.indexOf(state);
+	}
+
+	/**
+	 * The id in baseIndexer of the base state of a split state.
+	 */
+	public int getBaseId(String state) {
+		return baseIds[stateIndexer.indexOf(state)];
+	}
+
+	public Indexer<String> getBaseIndexer() {
+		return baseIndexer;
+	}
+
+	/**
+	 * For each split state id, the state it becomes after merging mergeSet,
+	 * or null if it is kept.
+	 */
+	public String[] getMergedStates(Set<String> mergeSet) {
+		String[] mergedStates = new String[originalStates.length];
+		for (int id = 0; id < mergedStates.length; id++) {
+			if (mergeSet.contains(originalStates[id]))
+				mergedStates[id] = originalStates[id];
+		}
+		return mergedStates;
 	}
 
 	private void buildSimpleLexicon(SimpleLexicon lexicon,
@@ -56,9 +166,9 @@ public class GrammarSpliter {
 		CounterMap<String, String> oldWordToTagCounters = lexicon
 				.getWordToTagCounters();
 
-		for (String word : oldWordToTagCounters.keySet()) {
+		for (String word : CollectionUtils.sort(oldWordToTagCounters.keySet())) {
 			Counter<String> vCounter = oldWordToTagCounters.getCounter(word);
-			for (String oldTag : vCounter.keySet()) {
+			for (String oldTag : CollectionUtils.sort(vCounter.keySet())) {
 				List<String> newTagList = statesMap.get(oldTag);
 				double score = vCounter.getCount(oldTag) / 2.0 * getRandom();
 				for (String newTag : newTagList) {
@@ -69,33 +179,68 @@ public class GrammarSpliter {
 		newLexicon = new SimpleLexicon(wordToTagCounters);
 	}
 
+	/**
+	 * A checksum of the split grammar and lexicon, scores included. Two
+	 * splits of the same model with the same seed have the same digest.
+	 */
+	public long getDigest() {
+		long digest = 17;
+		for (BinaryRule rule : CollectionUtils.sort(newGrammar.getBinaryRules(),
+				BINARY_RULE_ORDER)) {
+			digest = 31 * digest + rule.hashCode();
+			digest = 31 * digest + Double.doubleToLongBits(rule.getScore());
+		}
+		for (UnaryRule rule : CollectionUtils.sort(newGrammar.getUnaryRules(),
+				UNARY_RULE_ORDER)) {
+			digest = 31 * digest + rule.hashCode();
+			digest = 31 * digest + Double.doubleToLongBits(rule.getScore());
+		}
+		CounterMap<String, String> wordToTagCounters = newLexicon
+				.getWordToTagCounters();
+		for (String word : CollectionUtils.sort(wordToTagCounters.keySet())) {
+			Counter<String> tagCounter = wordToTagCounters.getCounter(word);
+			for (String tag : CollectionUtils.sort(tagCounter.keySet())) {
+				digest = 31 * digest + word.hashCode();
+				digest = 31 * digest + tag.hashCode();
+				digest = 31 * digest
+						+ Double.doubleToLongBits(tagCounter.getCount(tag));
+			}
+		}
+		return digest;
+	}
+
 	public static String getBaseState(String state) {
 		int markIndex = state.indexOf(LableMark);
 		return markIndex >= 0 ? state.substring(0, markIndex) : state;
 	}
 
-	private List<String> splitState(String state) {
+	/**
+	 * The substate number n of a state "X^n", 0 for a state that has not been
+	 * split.
+	 */
+	public static int getSubstate(String state) {
 		int markIndex = state.indexOf(LableMark);
-		int oldLabel = 0;
-		String baseState;
-		if (markIndex >= 0) {
-			// has been split
-			oldLabel = Integer.parseInt(state.substring(markIndex + 1));
-			baseState = state.substring(0, markIndex);
-		} else {
-			baseState = state;
-		}
+		return markIndex >= 0 ? Integer.parseInt(state.substring(markIndex + 1))
+				: 0;
+	}
+
+	/**
+	 * The label of a substate, the base state itself for substate 0.
+	 */
+	public static String makeState(String baseState, int substate) {
+		return substate == 0 ? baseState : baseState + LableMark + substate;
+	}
+
+	private List<String> splitState(String state) {
+		int oldLabel = getSubstate(state);
+		String baseState = getBaseState(state);
 		if (state == "ROOT") {
 			return Collections.singletonList(state);
 		}
 		// split two new states and add to map
 		List<String> list = new ArrayList<String>(2);
-		String newState = String.format("%s%c%d", baseState, LableMark,
-				oldLabel * 2 + 1);
-		list.add(newState);
-		newState = String.format("%s%c%d", baseState, LableMark,
-				oldLabel * 2 + 2);
-		list.add(newState);
+		list.add(makeState(baseState, oldLabel * 2 + 1));
+		list.add(makeState(baseState, oldLabel * 2 + 2));
 		return list;
 	}
 
@@ -118,8 +263,10 @@ public class GrammarSpliter {
 	private void splitOldGrammar(Grammar oldGrammar) {
 		Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
 		Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
-		List<BinaryRule> oldBinaryRules = oldGrammar.getBinaryRules();
-		List<UnaryRule> oldUnaryRules = oldGrammar.getUnaryRules();
+		List<BinaryRule> oldBinaryRules = CollectionUtils.sort(
+				oldGrammar.getBinaryRules(), BINARY_RULE_ORDER);
+		List<UnaryRule> oldUnaryRules = CollectionUtils.sort(
+				oldGrammar.getUnaryRules(), UNARY_RULE_ORDER);
 		for (BinaryRule binaryRule : oldBinaryRules) {
 			for (String newparent : splitMap.get(binaryRule.getParent())) {
 				for (String newleft : splitMap.get(binaryRule.getLeftChild())) {
@@ -146,32 +293,25 @@ public class GrammarSpliter {
 	}
 
 	public static String getOriginalState(String state) {
-		int markIndex = state.indexOf(LableMark);
-		if (markIndex < 0)
+		int index = getSubstate(state);
+		if (index == 0)
 			return state;
-		int index = Integer.parseInt(state.substring(markIndex + 1));
-		index = (index - 1) / 2;
-		return index == 0 ? state.substring(0, markIndex) : String.format(
-				"%s%c%d", state.substring(0, markIndex), LableMark, index);
+		return makeState(getBaseState(state), (index - 1) / 2);
 	}
 
 	public static String getOtherLabel(String state) {
-		int markIndex = state.indexOf(LableMark);
-		if (markIndex < 0) {
+		int index = getSubstate(state);
+		if (index == 0) {
 			return state;
 		}
-		int index = Integer.parseInt(state.substring(markIndex + 1));
 		if ((index & 1) == 0) {
 			index--;
 		} else {
 			index++;
 		}
-		return index == 0 ? state.substring(0, markIndex) : String.format(
-				"%s%c%d", state.substring(0, markIndex), LableMark, index);
+		return makeState(getBaseState(state), index);
 	}
 
-	static Random random = new Random(1);
-
 	private double getRandom() {
 		return 1.0 + (random.nextDouble() - 0.5) / 50;
 	}
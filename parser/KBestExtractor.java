@@ -0,0 +1,295 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nlp.ling.Tree;
+import nlp.util.GeneralPriorityQueue;
+import nlp.util.Pair;
+
+/**
+ * Lazy k-best extraction (Huang and Chiang 2005, algorithm 3) from a filled
+ * ArrayCKYParser chart. The chart is read as a hypergraph with two nodes per
+ * (span, state), as in a chart cell: a binary node, built by a binary rule or
+ * a tag, and a closed node, which holds a binary node as it is or puts a
+ * closed unary rule on top of one. A node's incoming edges are only listed
+ * when it is first asked for a derivation, and its k-th best derivation is
+ * only computed when asked for. Binary edges join closed nodes that are in
+ * the chart, so pruning by a beam or a coarse pass carries over.
+ */
+class KBestExtractor {
+	// parses of the same tree visited at most, per parse asked for
+	static final int DERIVATIONS_PER_PARSE = 100;
+	static final int BINARY = 0;
+	static final int CLOSED = 1;
+	// edge kinds besides binary edges, whose kind is the split point
+	static final int LEXICAL = -1;
+	static final int UNARY = -2;
+	static final int SELF = -3;
+
+	ArrayCKYParser parser;
+	ArrayCKYParser.Chart chart;
+	Map<Long, Node> nodes = new HashMap<Long, Node>();
+	// tag scores of each word over states, filled when first needed
+	double[][] tagScores;
+
+	KBestExtractor(ArrayCKYParser parser, ArrayCKYParser.Chart chart) {
+		this.parser = parser;
+		this.chart = chart;
+		tagScores = new double[chart.length][];
+	}
+
+	class Node {
+		int layer, i, j, state;
+		List<Edge> edges;
+		List<Derivation> derivations = new ArrayList<Derivation>();
+		GeneralPriorityQueue<Derivation> candidates = new GeneralPriorityQueue<Derivation>();
+		Set<Derivation> seen = new HashSet<Derivation>();
+
+		Node(int layer, int i, int j, int state) {
+			this.layer = layer;
+			this.i = i;
+			this.j = j;
+			this.state = state;
+		}
+	}
+
+	static class Edge {
+		int kind;
+		Node left, right;
+		double score;
+		// the closed rule of a unary edge
+		int rule;
+
+		Edge(int kind, Node left, Node right, double score, int rule) {
+			this.kind = kind;
+			this.left = left;
+			this.right = right;
+			this.score = score;
+			this.rule = rule;
+		}
+	}
+
+	/**
+	 * An edge with the ranks of the derivations of its children.
+	 */
+	static class Derivation {
+		Edge edge;
+		int leftRank, rightRank;
+		double score;
+
+		Derivation(Edge edge, int leftRank, int rightRank, double score) {
+			this.edge = edge;
+			this.leftRank = leftRank;
+			this.rightRank = rightRank;
+			this.score = score;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Derivation))
+				return false;
+			Derivation other = (Derivation) o;
+			return edge == other.edge && leftRank == other.leftRank
+					&& rightRank == other.rightRank;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(edge) * 31 + leftRank) * 31
+					+ rightRank;
+		}
+	}
+
+	List<Pair<Tree<String>, Double>> getKBestParses(int k) {
+		List<Pair<Tree<String>, Double>> parses = new ArrayList<Pair<Tree<String>, Double>>();
+		Set<String> found = new HashSet<String>();
+		Node root = getNode(CLOSED, 0, chart.length, parser.rootState);
+		for (int rank = 0; parses.size() < k
+				&& rank < k * DERIVATIONS_PER_PARSE; rank++) {
+			Derivation derivation = getDerivation(root, rank);
+			if (derivation == null)
+				break;
+			Tree<String> tree = TreeAnnotations.unAnnotateTree(buildTree(
+					root, derivation));
+			if (found.add(tree.toString()))
+				parses.add(new Pair<Tree<String>, Double>(tree,
+						derivation.score));
+		}
+		return parses;
+	}
+
+	Node getNode(int layer, int i, int j, int state) {
+		long key = (((long) layer * (chart.length + 1) + i)
+				* (chart.length + 1) + j)
+				* parser.numStates + state;
+		Node node = nodes.get(key);
+		if (node == null) {
+			node = new Node(layer, i, j, state);
+			nodes.put(key, node);
+		}
+		return node;
+	}
+
+	/**
+	 * The derivation of the node of the given rank, 0 being the best, or null
+	 * if the node has fewer derivations.
+	 */
+	Derivation getDerivation(Node node, int rank) {
+		if (node.edges == null)
+			addCandidates(node);
+		while (node.derivations.size() <= rank) {
+			if (!node.derivations.isEmpty())
+				addSuccessors(node,
+						node.derivations.get(node.derivations.size() - 1));
+			if (node.candidates.isEmpty())
+				return null;
+			node.derivations.add(node.candidates.removeFirst());
+		}
+		return node.derivations.get(rank);
+	}
+
+	/**
+	 * List the incoming edges of the node and make the best derivation of
+	 * each a candidate.
+	 */
+	private void addCandidates(Node node) {
+		node.edges = new ArrayList<Edge>();
+		if (!chart.isAllowed(node.i, node.j, node.state))
+			return;
+		if (node.layer == CLOSED) {
+			addEdge(node, new Edge(SELF, getNode(BINARY, node.i, node.j,
+					node.state), null, parser.logSpace ? 0.0 : 1.0, -1));
+			int[] children = parser.unaryChildrenByParent[node.state];
+			for (int r = 0; r < children.length; r++) {
+				addEdge(node, new Edge(UNARY, getNode(BINARY, node.i, node.j,
+						children[r]), null,
+						parser.unaryScoresByParent[node.state][r],
+						parser.unaryRulesByParent[node.state][r]));
+			}
+		} else if (node.j == node.i + 1) {
+			double score = getTagScores(node.i)[node.state];
+			if (score != ArrayCKYParser.ABSENT)
+				addEdge(node, new Edge(LEXICAL, null, null, score, -1));
+		} else {
+			CompiledGrammar compiled = parser.compiled;
+			int start = compiled.binaryParentStarts[node.state];
+			int end = compiled.binaryParentStarts[node.state + 1];
+			for (int k = node.i + 1; k < node.j; k++) {
+				ArrayCKYParser.Cell leftCell = chart.cells[node.i][k];
+				ArrayCKYParser.Cell rightCell = chart.cells[k][node.j];
+				for (int n = start; n < end; n++) {
+					int r = compiled.binaryByParent[n];
+					int b = compiled.binaryLefts[r], c = compiled.binaryRights[r];
+					if (leftCell.indexOf(b) < 0 || rightCell.indexOf(c) < 0)
+						continue;
+					addEdge(node, new Edge(k, getNode(CLOSED, node.i, k, b),
+							getNode(CLOSED, k, node.j, c),
+							parser.binaryScores[r], -1));
+				}
+			}
+		}
+	}
+
+	private void addEdge(Node node, Edge edge) {
+		node.edges.add(edge);
+		addCandidate(node, edge, 0, 0);
+	}
+
+	/**
+	 * Make the derivation of the edge with the given child ranks a candidate
+	 * of the node, unless the children have no such derivations or it was a
+	 * candidate before.
+	 */
+	private void addCandidate(Node node, Edge edge, int leftRank, int rightRank) {
+		double score = edge.score;
+		if (edge.left != null) {
+			Derivation left = getDerivation(edge.left, leftRank);
+			if (left == null)
+				return;
+			score = combine(score, left.score);
+		}
+		if (edge.right != null) {
+			Derivation right = getDerivation(edge.right, rightRank);
+			if (right == null)
+				return;
+			score = combine(score, right.score);
+		}
+		Derivation derivation = new Derivation(edge, leftRank, rightRank,
+				score);
+		if (node.seen.add(derivation))
+			node.candidates.relaxPriority(derivation, score);
+	}
+
+	/**
+	 * The neighbours of a popped derivation: one child rank more on either
+	 * side.
+	 */
+	private void addSuccessors(Node node, Derivation derivation) {
+		Edge edge = derivation.edge;
+		if (edge.left != null)
+			addCandidate(node, edge, derivation.leftRank + 1,
+					derivation.rightRank);
+		if (edge.right != null)
+			addCandidate(node, edge, derivation.leftRank,
+					derivation.rightRank + 1);
+	}
+
+	private double combine(double a, double b) {
+		return parser.logSpace ? a + b : a * b;
+	}
+
+	private double[] getTagScores(int position) {
+		if (tagScores[position] == null) {
+			double[] scores = new double[parser.numStates];
+			java.util.Arrays.fill(scores, ArrayCKYParser.ABSENT);
+			int[] tagIds = new int[parser.tags.length];
+			double[] probabilities = new double[parser.tags.length];
+			int numTags = parser.tagTable.getTagScores(
+					chart.sentence.get(position), tagIds, probabilities);
+			for (int t = 0; t < numTags; t++) {
+				scores[parser.tagStates[tagIds[t]]] = parser
+						.toScore(probabilities[t]);
+			}
+			tagScores[position] = scores;
+		}
+		return tagScores[position];
+	}
+
+	private Tree<String> buildTree(Node node, Derivation derivation) {
+		Edge edge = derivation.edge;
+		List<String> sentence = chart.sentence;
+		String label = parser.stateIndexer.get(node.state);
+		if (edge.kind == SELF)
+			return buildTree(edge.left, getDerivation(edge.left,
+					derivation.leftRank));
+		if (edge.kind == LEXICAL)
+			return new Tree<String>(label,
+					Collections.singletonList(new Tree<String>(sentence
+							.get(node.i))));
+		if (edge.kind == UNARY) {
+			List<String> path = parser.uc.getPath(edge.rule);
+			Derivation child = getDerivation(edge.left, derivation.leftRank);
+			if (child.edge.kind == LEXICAL) {
+				List<Tree<String>> emptyList = Collections.emptyList();
+				Tree<String> leaf = new Tree<String>(sentence.get(node.i),
+						emptyList);
+				return CKYParser.buildUnaryTree(path,
+						Collections.singletonList(leaf));
+			}
+			return CKYParser.buildUnaryTree(path.subList(0, path.size() - 1),
+					Collections.singletonList(buildTree(edge.left, child)));
+		}
+		List<Tree<String>> children = new ArrayList<Tree<String>>(2);
+		children.add(buildTree(edge.left, getDerivation(edge.left,
+				derivation.leftRank)));
+		children.add(buildTree(edge.right, getDerivation(edge.right,
+				derivation.rightRank)));
+		return new Tree<String>(label, children);
+	}
+}
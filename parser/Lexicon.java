@@ -14,6 +14,9 @@ import nlp.util.CounterMap;
 public class Lexicon {
 	CounterMap<String, String> wordToTagCounters;
 	Counter<String> tagCounter;
+	// words seen fewer times get smoothed with the tag distribution
+	static final double RARE_WORD_COUNT = 10;
+	TagScoreTable tagScoreTable;
 
 	public Set<String> getAllTags() {
 		return tagCounter.keySet();
@@ -25,9 +28,11 @@ public class Lexicon {
 
 	public double scoreTagging(String word, String tag) {
 		double p_tag = tagCounter.getCount(tag) / tagCounter.totalCount();
-		double c_word = wordToTagCounters.getCounter(word).totalCount();
+		// getCounter would insert an empty counter for unknown words
+		double c_word = isKnown(word) ? wordToTagCounters.getCounter(word)
+				.totalCount() : 0.0;
 		double c_tag_and_word = wordToTagCounters.getCount(word, tag);
-		if (c_word < 10) { // rare or unknown
+		if (c_word < RARE_WORD_COUNT) { // rare or unknown
 			c_word += 1.0;
 			c_tag_and_word += tagCounter.getCount(tag)
 					/ tagCounter.totalCount();
@@ -36,6 +41,16 @@ public class Lexicon {
 		return p_tag_given_word / p_tag;
 	}
 
+	/**
+	 * The scores of all words and tags over tag ids, built on first use. The
+	 * lexicon must not change afterwards.
+	 */
+	public synchronized TagScoreTable getTagScoreTable() {
+		if (tagScoreTable == null)
+			tagScoreTable = new TagScoreTable(this);
+		return tagScoreTable;
+	}
+
 	public Lexicon(CounterMap<String, String> wordToTagCounters) {
 		this(wordToTagCounters, buildTagCounter(wordToTagCounters));
 	}
@@ -44,6 +59,18 @@ public class Lexicon {
 			Counter<String> tagCounter) {
 		this.wordToTagCounters = wordToTagCounters;
 		this.tagCounter = tagCounter;
+		cacheTotalCounts();
+	}
+
+	/**
+	 * Compute the cached totals of all counters once, so that scoreTagging
+	 * only reads and a built lexicon can be shared by parsing threads.
+	 */
+	private void cacheTotalCounts() {
+		tagCounter.totalCount();
+		for (String word : wordToTagCounters.keySet()) {
+			wordToTagCounters.getCounter(word).totalCount();
+		}
 	}
 
 	public static Lexicon createLexicon(List<Tree<String>> trainTrees) {
@@ -0,0 +1,316 @@
+package nlp.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import nlp.util.Counter;
+import nlp.util.CounterMap;
+import nlp.util.Indexer;
+
+/**
+ * A trained parsing model in a compact binary file: the grammar, lexicon and
+ * unary closure of a CKY parser, plus the base grammar and lexicon of a
+ * split-merge model for coarse-to-fine parsing. All symbols (states, tags and
+ * words) are written once to a symbol table, and rules, counts and closure
+ * paths are stored as ids and doubles. Loading memory-maps the file and
+ * rebuilds the objects without any training.
+ *
+ * Layout: magic, version, symbol table, root, grammar, lexicon, closure, then
+ * an optional base grammar and base lexicon. Rules and counters are written in
+ * the iteration order of the saved model, so a loaded model sums and breaks
+ * ties exactly like the saved one.
+ */
+public class ModelSnapshot {
+	static final int MAGIC = 0x4e4c5053;
+	static final int VERSION = 1;
+	static final byte LEXICON = 0;
+	static final byte SIMPLE_LEXICON = 1;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	String root;
+	Grammar grammar;
+	Lexicon lexicon;
+	UnaryClosure uc;
+	// optional, the unsplit model of a split-merge grammar
+	Grammar baseGrammar;
+	Lexicon baseLexicon;
+
+	public ModelSnapshot(CKYParser model) {
+		this(model.getRoot(), model.grammar, model.lexicon, model.uc);
+		if (model instanceof CKYParserTester) {
+			CKYParserTester tester = (CKYParserTester) model;
+			baseGrammar = tester.baseGrammar;
+			baseLexicon = tester.baseLexicon;
+		}
+	}
+
+	public ModelSnapshot(String root, Grammar grammar, Lexicon lexicon,
+			UnaryClosure uc) {
+		this.root = root;
+		this.grammar = grammar;
+		this.lexicon = lexicon;
+		this.uc = uc;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	public Grammar getGrammar() {
+		return grammar;
+	}
+
+	public Lexicon getLexicon() {
+		return lexicon;
+	}
+
+	public UnaryClosure getUnaryClosure() {
+		return uc;
+	}
+
+	public boolean hasBaseModel() {
+		return baseGrammar != null && baseLexicon != null;
+	}
+
+	public ArrayCKYParser buildParser() {
+		return new ArrayCKYParser(grammar, lexicon, uc, root);
+	}
+
+	public CoarseToFineParser buildCoarseToFineParser(double threshold) {
+		if (!hasBaseModel())
+			throw new RuntimeException("Snapshot has no base grammar");
+		return new CoarseToFineParser(grammar, lexicon, uc, root, baseGrammar,
+				baseLexicon, threshold);
+	}
+
+	// writing
+
+	public void write(String fileName) throws IOException {
+		Indexer<String> symbols = new Indexer<String>();
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bodyBytes);
+		body.writeInt(symbols.addAndGetIndex(root));
+		writeGrammar(body, grammar, symbols);
+		writeLexicon(body, lexicon, symbols);
+		writeClosure(body, uc, symbols);
+		body.writeBoolean(hasBaseModel());
+		if (hasBaseModel()) {
+			writeGrammar(body, baseGrammar, symbols);
+			writeLexicon(body, baseLexicon, symbols);
+		}
+		body.flush();
+		writeFile(fileName, MAGIC, symbols, bodyBytes);
+	}
+
+	/**
+	 * Write a file of this format: magic, version, the symbol table, then the
+	 * body, whose ids refer to the symbol table.
+	 */
+	static void writeFile(String fileName, int magic, Indexer<String> symbols,
+			ByteArrayOutputStream bodyBytes) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+		try {
+			out.writeInt(magic);
+			out.writeInt(VERSION);
+			out.writeInt(symbols.size());
+			for (String symbol : symbols) {
+				byte[] bytes = symbol.getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			bodyBytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeGrammar(DataOutputStream out, Grammar grammar,
+			Indexer<String> symbols) throws IOException {
+		out.writeBoolean(grammar.full);
+		out.writeBoolean(grammar.hasLookupTables());
+		List<BinaryRule> binaryRules = grammar.getBinaryRules();
+		out.writeInt(binaryRules.size());
+		for (BinaryRule rule : binaryRules) {
+			out.writeInt(symbols.addAndGetIndex(rule.getParent()));
+			out.writeInt(symbols.addAndGetIndex(rule.getLeftChild()));
+			out.writeInt(symbols.addAndGetIndex(rule.getRightChild()));
+			out.writeDouble(rule.getScore());
+			out.writeDouble(grammar.binaryRuleCounter.getCount(rule));
+			out.writeDouble(grammar.getBinaryScore(rule.getParent(),
+					rule.getLeftChild(), rule.getRightChild()));
+		}
+		List<UnaryRule> unaryRules = grammar.getUnaryRules();
+		out.writeInt(unaryRules.size());
+		for (UnaryRule rule : unaryRules) {
+			out.writeInt(symbols.addAndGetIndex(rule.getParent()));
+			out.writeInt(symbols.addAndGetIndex(rule.getChild()));
+			out.writeDouble(rule.getScore());
+			out.writeDouble(grammar.unaryRuleCounter.getCount(rule));
+			out.writeDouble(grammar.getUnaryScore(rule.getParent(),
+					rule.getChild()));
+		}
+	}
+
+	static void writeLexicon(DataOutputStream out, Lexicon lexicon,
+			Indexer<String> symbols) throws IOException {
+		out.writeByte(lexicon instanceof SimpleLexicon ? SIMPLE_LEXICON
+				: LEXICON);
+		CounterMap<String, String> wordToTagCounters = lexicon.wordToTagCounters;
+		out.writeInt(wordToTagCounters.keySet().size());
+		for (String word : wordToTagCounters.keySet()) {
+			out.writeInt(symbols.addAndGetIndex(word));
+			writeCounter(out, wordToTagCounters.getCounter(word), symbols);
+		}
+		writeCounter(out, lexicon.tagCounter, symbols);
+	}
+
+	private static void writeCounter(DataOutputStream out,
+			Counter<String> counter, Indexer<String> symbols)
+			throws IOException {
+		out.writeInt(counter.size());
+		for (String key : counter.keySet()) {
+			out.writeInt(symbols.addAndGetIndex(key));
+			out.writeDouble(counter.getCount(key));
+		}
+	}
+
+	private static void writeClosure(DataOutputStream out, UnaryClosure uc,
+			Indexer<String> symbols) throws IOException {
+		Indexer<String> states = uc.getStateIndexer();
+		out.writeInt(uc.getNumRules());
+		for (int r = 0; r < uc.getNumRules(); r++) {
+			out.writeInt(symbols.addAndGetIndex(states.get(uc.parents[r])));
+			out.writeInt(symbols.addAndGetIndex(states.get(uc.children[r])));
+			out.writeDouble(uc.scores[r]);
+			List<String> path = uc.getPath(r);
+			out.writeInt(path.size());
+			for (String state : path) {
+				out.writeInt(symbols.addAndGetIndex(state));
+			}
+		}
+	}
+
+	// reading
+
+	public static ModelSnapshot read(String fileName) throws IOException {
+		ByteBuffer in = mapFile(fileName, MAGIC);
+		String[] symbols = readSymbols(in);
+		String root = symbols[in.getInt()];
+		Grammar grammar = readGrammar(in, symbols);
+		Lexicon lexicon = readLexicon(in, symbols);
+		UnaryClosure uc = readClosure(in, symbols);
+		ModelSnapshot snapshot = new ModelSnapshot(root, grammar, lexicon, uc);
+		if (in.get() != 0) {
+			snapshot.baseGrammar = readGrammar(in, symbols);
+			snapshot.baseLexicon = readLexicon(in, symbols);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Memory-map a file written by writeFile and check its header.
+	 */
+	static ByteBuffer mapFile(String fileName, int magic) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ByteBuffer in;
+		try {
+			FileChannel channel = file.getChannel();
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		if (in.getInt() != magic)
+			throw new RuntimeException(fileName + " has the wrong file type");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new RuntimeException("Unsupported snapshot version "
+					+ version);
+		return in;
+	}
+
+	static String[] readSymbols(ByteBuffer in) {
+		String[] symbols = new String[in.getInt()];
+		for (int s = 0; s < symbols.length; s++) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			symbols[s] = new String(bytes, UTF8).intern();
+		}
+		return symbols;
+	}
+
+	static Grammar readGrammar(ByteBuffer in, String[] symbols) {
+		Grammar grammar = new Grammar(in.get() != 0);
+		boolean lookupTables = in.get() != 0;
+		int numBinaryRules = in.getInt();
+		for (int r = 0; r < numBinaryRules; r++) {
+			BinaryRule rule = new BinaryRule(symbols[in.getInt()],
+					symbols[in.getInt()], symbols[in.getInt()]);
+			rule.setScore(in.getDouble());
+			double count = in.getDouble();
+			grammar.restoreBinaryRule(rule, count, in.getDouble());
+		}
+		int numUnaryRules = in.getInt();
+		for (int r = 0; r < numUnaryRules; r++) {
+			UnaryRule rule = new UnaryRule(symbols[in.getInt()],
+					symbols[in.getInt()]);
+			rule.setScore(in.getDouble());
+			double count = in.getDouble();
+			grammar.restoreUnaryRule(rule, count, in.getDouble());
+		}
+		if (lookupTables && !grammar.full) {
+			grammar.becomeFull();
+		}
+		return grammar;
+	}
+
+	static Lexicon readLexicon(ByteBuffer in, String[] symbols) {
+		byte kind = in.get();
+		CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
+		int numWords = in.getInt();
+		for (int w = 0; w < numWords; w++) {
+			String word = symbols[in.getInt()];
+			int numTags = in.getInt();
+			for (int t = 0; t < numTags; t++) {
+				wordToTagCounters.setCount(word, symbols[in.getInt()],
+						in.getDouble());
+			}
+		}
+		Counter<String> tagCounter = new Counter<String>();
+		int numTags = in.getInt();
+		for (int t = 0; t < numTags; t++) {
+			tagCounter.setCount(symbols[in.getInt()], in.getDouble());
+		}
+		if (kind == SIMPLE_LEXICON)
+			return new SimpleLexicon(wordToTagCounters);
+		return new Lexicon(wordToTagCounters, tagCounter);
+	}
+
+	private static UnaryClosure readClosure(ByteBuffer in, String[] symbols) {
+		int size = in.getInt();
+		List<UnaryRule> rules = new ArrayList<UnaryRule>(size);
+		List<List<String>> paths = new ArrayList<List<String>>(size);
+		for (int r = 0; r < size; r++) {
+			UnaryRule rule = new UnaryRule(symbols[in.getInt()],
+					symbols[in.getInt()]);
+			rule.setScore(in.getDouble());
+			int pathLength = in.getInt();
+			List<String> path = new ArrayList<String>(pathLength);
+			for (int s = 0; s < pathLength; s++) {
+				path.add(symbols[in.getInt()]);
+			}
+			rules.add(rule);
+			paths.add(path);
+		}
+		return new UnaryClosure(rules, paths);
+	}
+}
@@ -0,0 +1,57 @@
+package nlp.parser;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The work a parser may spend on one sentence: a wall clock time and a number
+ * of chart edges. The parser charges the edges it builds as it goes, and the
+ * charge that passes either limit throws Exceeded. Charges may come from
+ * several threads at once.
+ *
+ * The budget is only checked when charged: ArrayCKYParser charges once per
+ * finished chart cell and CoarseToFineParser once per span of its coarse
+ * pass, so a parse can overrun either limit by the work of one cell.
+ */
+public class ParseBudget {
+	long start;
+	long maxNanos;
+	long maxEdges;
+	AtomicLong edges = new AtomicLong();
+
+	/**
+	 * A budget starting now; Long.MAX_VALUE leaves a limit off.
+	 */
+	public ParseBudget(long maxNanos, long maxEdges) {
+		this.start = System.nanoTime();
+		this.maxNanos = maxNanos;
+		this.maxEdges = maxEdges;
+	}
+
+	public void charge(int newEdges) {
+		long spent = edges.addAndGet(newEdges);
+		if (spent > maxEdges)
+			throw new Exceeded("Edge budget exceeded: " + spent + " of "
+					+ maxEdges + " edges");
+		if (maxNanos != Long.MAX_VALUE) {
+			long elapsed = System.nanoTime() - start;
+			if (elapsed > maxNanos)
+				throw new Exceeded("Time budget exceeded: " + elapsed
+						/ 1000000 + " of " + maxNanos / 1000000 + " ms");
+		}
+	}
+
+	public long getEdges() {
+		return edges.get();
+	}
+
+	/**
+	 * Thrown out of a parse that ran over its budget.
+	 */
+	public static class Exceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public Exceeded(String message) {
+			super(message);
+		}
+	}
+}
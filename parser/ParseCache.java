@@ -0,0 +1,253 @@
+package nlp.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+
+/**
+ * A bounded cache of parses, keyed by the parsing model and the words of the
+ * sentence. Models are compared by identity, so one cache can be shared by
+ * several parsers. Both the number of entries and their estimated size in
+ * bytes are capped, and the least recently used entries are evicted first.
+ *
+ * The cache is split into segments by the hash of the key, each an LRU map
+ * under its own lock, so concurrent parsers rarely wait for each other. The
+ * caps are split evenly over the segments; small byte caps get fewer
+ * segments, so that each can still hold a parse of a typical sentence.
+ * Trees are stored as frozen copies and every lookup returns a fresh copy,
+ * so callers may change what they get.
+ */
+public class ParseCache {
+	static final int NUM_SEGMENTS = 16;
+	// rough sizes on a 64 bit JVM with compressed pointers
+	static final int ENTRY_BYTES = 96;
+	static final int NODE_BYTES = 48;
+	static final int WORD_BYTES = 48;
+	// a 25 word sentence with about three nodes per word
+	static final long TYPICAL_ENTRY_BYTES = ENTRY_BYTES + 25
+			* (WORD_BYTES + 3 * NODE_BYTES);
+
+	Segment[] segments;
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A cache of at most maxEntries parses, whose estimated size stays below
+	 * maxBytes.
+	 */
+	public ParseCache(int maxEntries, long maxBytes) {
+		if (maxEntries <= 0 || maxBytes <= 0)
+			throw new RuntimeException("Cache bounds must be positive");
+		int numSegments = (int) Math.max(1, Math.min(
+				Math.min(NUM_SEGMENTS, maxEntries), maxBytes
+						/ TYPICAL_ENTRY_BYTES));
+		segments = new Segment[numSegments];
+		for (int s = 0; s < numSegments; s++) {
+			// spread the remainder, so the caps add up
+			int entries = maxEntries / numSegments
+					+ (s < maxEntries % numSegments ? 1 : 0);
+			segments[s] = new Segment(entries, maxBytes / numSegments);
+		}
+	}
+
+	public ParseCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE);
+	}
+
+	static class Key {
+		Object model;
+		List<String> sentence;
+		int hash;
+
+		Key(Object model, List<String> sentence) {
+			this.model = model;
+			this.sentence = sentence;
+			hash = System.identityHashCode(model) * 31 + sentence.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return model == other.model && hash == other.hash
+					&& sentence.equals(other.sentence);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	static class Entry {
+		Tree<String> tree;
+		long bytes;
+
+		Entry(Tree<String> tree, long bytes) {
+			this.tree = tree;
+			this.bytes = bytes;
+		}
+	}
+
+	class Segment {
+		int maxEntries;
+		long maxBytes;
+		long bytes;
+		// in access order, eldest first
+		LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16,
+				0.75f, true);
+
+		Segment(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized Tree<String> get(Key key) {
+			Entry entry = entries.get(key);
+			return entry == null ? null : entry.tree;
+		}
+
+		synchronized void put(Key key, Entry entry) {
+			Entry old = entries.put(key, entry);
+			if (old != null)
+				bytes -= old.bytes;
+			bytes += entry.bytes;
+			Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet()
+					.iterator();
+			while (entries.size() > maxEntries || bytes > maxBytes) {
+				// the new entry alone may be over the byte cap, then it goes
+				Entry evicted = eldest.next().getValue();
+				eldest.remove();
+				bytes -= evicted.bytes;
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void clear() {
+			entries.clear();
+			bytes = 0;
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized long bytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * A copy of the cached parse of the sentence by the model, or null.
+	 */
+	public Tree<String> get(Object model, List<String> sentence) {
+		Key key = new Key(model, sentence);
+		Tree<String> tree = getSegment(key).get(key);
+		if (tree == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return tree.deepCopy();
+	}
+
+	/**
+	 * Cache a copy of the parse of the sentence by the model. Neither the
+	 * sentence nor the tree are kept, so the caller may still change them.
+	 */
+	public void put(Object model, List<String> sentence, Tree<String> tree) {
+		Key key = new Key(model, Collections
+				.unmodifiableList(new ArrayList<String>(sentence)));
+		Tree<String> frozen = freeze(tree);
+		long bytes = ENTRY_BYTES + (long) sentence.size() * WORD_BYTES
+				+ (long) countNodes(frozen) * NODE_BYTES;
+		getSegment(key).put(key, new Entry(frozen, bytes));
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * The estimated size of the cached entries in bytes.
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.bytes();
+		}
+		return bytes;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long lookups = getHits() + getMisses();
+		return lookups == 0 ? 0.0 : getHits() / (double) lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "hits " + getHits() + ", misses " + getMisses() + " ("
+				+ ((int) (getHitRate() * 10000)) / 100.0 + "% hits), "
+				+ size() + " entries, " + getBytes() / 1024 + " KB, "
+				+ getEvictions() + " evicted";
+	}
+
+	private Segment getSegment(Key key) {
+		// spread the hash, the sentence hashes of short keys are clustered
+		int hash = key.hash ^ (key.hash >>> 16);
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * A copy of the tree whose child lists cannot be changed.
+	 */
+	private static Tree<String> freeze(Tree<String> tree) {
+		if (tree.isLeaf())
+			return new Tree<String>(tree.getLabel());
+		List<Tree<String>> children = new ArrayList<Tree<String>>(tree
+				.getChildren().size());
+		for (Tree<String> child : tree.getChildren()) {
+			children.add(freeze(child));
+		}
+		return new Tree<String>(tree.getLabel(),
+				Collections.unmodifiableList(children));
+	}
+
+	private static int countNodes(Tree<String> tree) {
+		int count = 1;
+		for (Tree<String> child : tree.getChildren()) {
+			count += countNodes(child);
+		}
+		return count;
+	}
+}
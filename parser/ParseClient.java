@@ -0,0 +1,91 @@
+package nlp.parser;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+import nlp.ling.Tree;
+import nlp.ling.Trees;
+
+/**
+ * A client of ParseServer on this machine, itself usable as a Parser. One
+ * client holds one connection and sends one request at a time, so threads
+ * should not share a client. A server answering BUSY makes parse throw Busy,
+ * and the caller decides whether to retry.
+ */
+public class ParseClient implements Parser, Closeable {
+	Socket socket;
+	BufferedReader in;
+	Writer out;
+
+	public ParseClient(int port) throws IOException {
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				ParseServer.UTF8));
+		out = new OutputStreamWriter(socket.getOutputStream(),
+				ParseServer.UTF8);
+	}
+
+	@Override
+	public Tree<String> getBestParse(List<String> sentence) {
+		try {
+			return parse(sentence);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Tree<String> parse(List<String> sentence) throws IOException {
+		StringBuilder request = new StringBuilder("PARSE");
+		for (String word : sentence) {
+			request.append(' ').append(word);
+		}
+		String reply = send(request.toString());
+		if (reply.equals("BUSY"))
+			throw new Busy();
+		if (!reply.startsWith("OK "))
+			throw new IOException("Parse failed: " + reply);
+		return new Trees.PennTreeReader(new StringReader(reply.substring(3)))
+				.next();
+	}
+
+	/**
+	 * The latency percentiles and counters of the server.
+	 */
+	public String getStats() throws IOException {
+		return send("STATS").substring("STATS ".length());
+	}
+
+	private String send(String request) throws IOException {
+		out.write(request);
+		out.write('\n');
+		out.flush();
+		String reply = in.readLine();
+		if (reply == null)
+			throw new IOException("Parse server closed the connection");
+		return reply;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * The server queue was full.
+	 */
+	public static class Busy extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public Busy() {
+			super("Parse server busy");
+		}
+	}
+}
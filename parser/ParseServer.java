@@ -0,0 +1,294 @@
+package nlp.parser;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nlp.ling.Tree;
+import nlp.util.CommandLineUtils;
+import nlp.util.LatencyHistogram;
+
+/**
+ * Serves a loaded parser over a local socket, one line per request:
+ *
+ * <pre>
+ * PARSE word word ...   answered by OK (ROOT ...), BUSY or ERROR message
+ * STATS                 answered by STATS and the latency percentiles
+ * </pre>
+ *
+ * Every connection gets its own thread, which mostly waits on the socket, up
+ * to a maximum number of connections; more are answered ERROR and closed.
+ * The parses run on a fixed pool of worker threads with a bounded queue; when
+ * the queue is full a request is answered BUSY straight away instead of
+ * piling up, and the client decides whether to retry. Latencies are measured
+ * from reading a request to writing its parse.
+ */
+public class ParseServer {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	Parser parser;
+	ServerSocket serverSocket;
+	ThreadPoolExecutor workers;
+	ThreadPoolExecutor connections;
+	// the sockets being served, closed by close()
+	Set<Socket> openSockets = Collections
+			.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	volatile boolean closed;
+	LatencyHistogram latencies = new LatencyHistogram();
+	AtomicLong rejected = new AtomicLong();
+	AtomicLong failed = new AtomicLong();
+	AtomicLong refused = new AtomicLong();
+
+	/**
+	 * A server on the given port of the loopback address, 0 for any free
+	 * port. The parser must allow concurrent getBestParse calls.
+	 *
+	 * @param numThreads
+	 *            the number of parses running at once
+	 * @param queueSize
+	 *            the number of parses waiting for a worker before requests
+	 *            are answered BUSY
+	 * @param maxConnections
+	 *            the number of connections open at once
+	 */
+	public ParseServer(Parser parser, int port, int numThreads,
+			int queueSize, int maxConnections) throws IOException {
+		this.parser = parser;
+		serverSocket = new ServerSocket(port, 50,
+				InetAddress.getLoopbackAddress());
+		workers = new ThreadPoolExecutor(numThreads, numThreads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), daemonThreads("parse-worker"),
+				new ThreadPoolExecutor.AbortPolicy());
+		// no queue, a connection over the limit is refused at once
+		connections = new ThreadPoolExecutor(0, maxConnections, 60L,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				daemonThreads("parse-connection"),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accept connections on a background thread until close is called.
+	 */
+	public void start() {
+		Thread acceptor = daemonThreads("parse-acceptor").newThread(
+				new Runnable() {
+					@Override
+					public void run() {
+						acceptConnections();
+					}
+				});
+		acceptor.start();
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// closed by close()
+				return;
+			}
+			try {
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				refused.incrementAndGet();
+				refuse(socket);
+			}
+		}
+	}
+
+	private void refuse(Socket socket) {
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+			out.write("ERROR too many connections\n");
+			out.flush();
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private void serve(Socket socket) {
+		openSockets.add(socket);
+		try {
+			// close() may have missed this socket
+			if (closed)
+				return;
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), UTF8));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.write(answer(line, System.nanoTime()));
+				out.write('\n');
+				out.flush();
+			}
+		} catch (SocketException e) {
+			// the client went away
+		} catch (IOException e) {
+			System.err.println("Parse connection failed: " + e);
+		} finally {
+			openSockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	String answer(String request, long start) {
+		if (request.trim().equals("STATS"))
+			return "STATS " + getStats();
+		if (!request.startsWith("PARSE "))
+			return "ERROR unknown request";
+		final List<String> sentence = Arrays.asList(request.substring(6)
+				.trim().split("\\s+"));
+		if (sentence.get(0).length() == 0)
+			return "ERROR empty sentence";
+		Future<Tree<String>> future;
+		try {
+			future = workers.submit(new Callable<Tree<String>>() {
+				@Override
+				public Tree<String> call() {
+					return parser.getBestParse(sentence);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return "BUSY";
+		}
+		try {
+			Tree<String> tree = future.get();
+			latencies.record(System.nanoTime() - start);
+			return "OK " + tree;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed.incrementAndGet();
+			return "ERROR interrupted";
+		} catch (ExecutionException e) {
+			failed.incrementAndGet();
+			return "ERROR " + String.valueOf(e.getCause().getMessage())
+					.replace('\n', ' ');
+		}
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	public String getStats() {
+		return "parsed " + latencies + ", busy " + rejected.get()
+				+ ", failed " + failed.get() + ", queued "
+				+ workers.getQueue().size() + ", connections "
+				+ connections.getActiveCount() + ", refused " + refused.get();
+	}
+
+	/**
+	 * Stop accepting connections and drop the open ones. Parses already
+	 * running are left to finish.
+	 */
+	public void close() {
+		closed = true;
+		closeQuietly(serverSocket);
+		// closing the sockets wakes the threads blocked reading them, which
+		// interrupts do not
+		for (Socket socket : openSockets) {
+			closeQuietly(socket);
+		}
+		connections.shutdownNow();
+		workers.shutdown();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	/**
+	 * Serve a model written by PCFGParserTester -saveModel: -model file,
+	 * optionally -port (default 4455), -threads (default one per processor),
+	 * -queue (default 4 per thread) and -connections (default 64), and the
+	 * parser options of PCFGParserTester, such as -c2f, -beam, -budgetMs
+	 * with its fallback, -cache and -stats (see ParserOptions).
+	 */
+	public static void main(String[] args) throws IOException {
+		Map<String, String> argMap = CommandLineUtils
+				.simpleCommandLineParser(args);
+		if (!argMap.containsKey("-model"))
+			throw new RuntimeException("Usage: ParseServer -model file");
+		int port = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(
+				argMap, "-port", "4455"));
+		int numThreads = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-threads", ""
+						+ Runtime.getRuntime().availableProcessors()));
+		int queueSize = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-queue", "" + 4 * numThreads));
+		int maxConnections = Integer.parseInt(CommandLineUtils
+				.getValueOrUseDefault(argMap, "-connections", "64"));
+
+		Parser parser = ParserOptions.loadArrayParser(argMap.get("-model"),
+				argMap, "ParseServer");
+		parser = ParserOptions.makeFallbackParser(parser, null, argMap);
+		parser = ParserOptions.makeCachingParser(parser, argMap);
+
+		final ParseServer server = new ParseServer(parser, port, numThreads,
+				queueSize, maxConnections);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.close();
+				System.out.println("Parse server: " + server.getStats());
+			}
+		});
+		System.out.println("Serving on port " + server.getPort() + " with "
+				+ numThreads + " workers.");
+		server.acceptConnections();
+	}
+}
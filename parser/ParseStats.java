@@ -0,0 +1,281 @@
+package nlp.parser;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import nlp.util.LatencyHistogram;
+
+/**
+ * Counters of the work done by a parser, per sentence and summed into bins of
+ * sentence length: wall time as a LatencyHistogram, and the chart cells and
+ * edges built, binary and unary rule applications, edges pruned by the beam,
+ * sentences aborted (no parse or over budget) and fallback parses. A rule
+ * application is a rule tried on scored children, whether or not it improved
+ * the cell. The coarse pass of a CoarseToFineParser counts as well, each
+ * coarse span as one cell. Recording is thread safe.
+ *
+ * The totals can be read over JMX once registered, and the whole table can be
+ * printed on a timer.
+ */
+public class ParseStats implements ParseStatsMBean {
+	static final int BIN_WIDTH = 10;
+	static final int NUM_BINS = 10;
+
+	// replaced as a whole by reset
+	volatile Bin[] bins = newBins();
+	volatile Bin total = new Bin();
+	ScheduledExecutorService dumper;
+	ObjectName objectName;
+
+	private static Bin[] newBins() {
+		Bin[] bins = new Bin[NUM_BINS];
+		for (int b = 0; b < NUM_BINS; b++) {
+			bins[b] = new Bin();
+		}
+		return bins;
+	}
+
+	/**
+	 * The counters of one sentence, filled while its chart is built. Cells of
+	 * one chart may be filled on several threads.
+	 */
+	public static class Sentence {
+		AtomicLong cells = new AtomicLong();
+		AtomicLong edges = new AtomicLong();
+		AtomicLong binaryRules = new AtomicLong();
+		AtomicLong unaryRules = new AtomicLong();
+		AtomicLong prunedEdges = new AtomicLong();
+
+		void addCell(int built, int binary, int unary, int pruned) {
+			cells.incrementAndGet();
+			edges.addAndGet(built);
+			binaryRules.addAndGet(binary);
+			unaryRules.addAndGet(unary);
+			prunedEdges.addAndGet(pruned);
+		}
+	}
+
+	static class Bin {
+		LatencyHistogram time = new LatencyHistogram();
+		AtomicLong aborted = new AtomicLong();
+		AtomicLong fallbacks = new AtomicLong();
+		Sentence counts = new Sentence();
+
+		void add(long nanos, Sentence sentence, boolean finished) {
+			time.record(nanos);
+			if (!finished)
+				aborted.incrementAndGet();
+			counts.cells.addAndGet(sentence.cells.get());
+			counts.edges.addAndGet(sentence.edges.get());
+			counts.binaryRules.addAndGet(sentence.binaryRules.get());
+			counts.unaryRules.addAndGet(sentence.unaryRules.get());
+			counts.prunedEdges.addAndGet(sentence.prunedEdges.get());
+		}
+
+		String report() {
+			long n = Math.max(1, time.getCount());
+			return time.getCount() + " sentences, " + aborted.get()
+					+ " aborted, " + fallbacks.get() + " fallbacks; per sentence "
+					+ counts.cells.get() / n + " cells, " + counts.edges.get()
+					/ n + " edges, " + counts.binaryRules.get() / n
+					+ " binary and " + counts.unaryRules.get() / n
+					+ " unary rules, " + counts.prunedEdges.get() / n
+					+ " pruned; time " + time;
+		}
+	}
+
+	/**
+	 * Add the counters of a sentence parsed in the given time. A sentence is
+	 * finished unless it was aborted.
+	 */
+	public void record(int length, long nanos, Sentence sentence,
+			boolean finished) {
+		getBin(length).add(nanos, sentence, finished);
+		total.add(nanos, sentence, finished);
+	}
+
+	/**
+	 * Count a sentence parsed again by a fallback parser.
+	 */
+	public void recordFallback(int length) {
+		getBin(length).fallbacks.incrementAndGet();
+		total.fallbacks.incrementAndGet();
+	}
+
+	private Bin getBin(int length) {
+		return bins[Math.min(NUM_BINS - 1, Math.max(0, length - 1) / BIN_WIDTH)];
+	}
+
+	@Override
+	public long getSentences() {
+		return total.time.getCount();
+	}
+
+	@Override
+	public long getAbortedSentences() {
+		return total.aborted.get();
+	}
+
+	@Override
+	public long getFallbacks() {
+		return total.fallbacks.get();
+	}
+
+	@Override
+	public long getCells() {
+		return total.counts.cells.get();
+	}
+
+	@Override
+	public long getEdges() {
+		return total.counts.edges.get();
+	}
+
+	@Override
+	public long getBinaryRuleApplications() {
+		return total.counts.binaryRules.get();
+	}
+
+	@Override
+	public long getUnaryRuleApplications() {
+		return total.counts.unaryRules.get();
+	}
+
+	@Override
+	public long getPrunedEdges() {
+		return total.counts.prunedEdges.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return total.time.getMeanNanos() / 1e6;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return total.time.getPercentileNanos(0.5) / 1e6;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return total.time.getPercentileNanos(0.9) / 1e6;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return total.time.getPercentileNanos(0.99) / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return total.time.getMaxNanos() / 1e6;
+	}
+
+	/**
+	 * The time histogram of sentences of the given length bin, 0 for lengths
+	 * 1 to BIN_WIDTH and so on; the last bin holds all longer sentences.
+	 */
+	public LatencyHistogram getTimes(int bin) {
+		return bins[bin].time;
+	}
+
+	@Override
+	public String getReport() {
+		Bin[] bins = this.bins;
+		StringBuilder sb = new StringBuilder();
+		for (int b = 0; b < NUM_BINS; b++) {
+			if (bins[b].time.getCount() == 0 && bins[b].fallbacks.get() == 0)
+				continue;
+			int low = b * BIN_WIDTH + 1;
+			sb.append("length ").append(low).append(
+					b == NUM_BINS - 1 ? "+" : "-" + (low + BIN_WIDTH - 1));
+			sb.append(": ").append(bins[b].report()).append('\n');
+		}
+		sb.append("all: ").append(total.report()).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Start over with all counters at zero. Sentences being parsed meanwhile
+	 * may be split between the old and the new counters.
+	 */
+	@Override
+	public void reset() {
+		bins = newBins();
+		total = new Bin();
+	}
+
+	/**
+	 * Make the totals readable over JMX as nlp.parser:type=ParseStats,name=...
+	 */
+	public synchronized void register(String name) {
+		try {
+			ObjectName objectName = new ObjectName(
+					"nlp.parser:type=ParseStats,name=" + name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Remove the registration of register, if any, so the name can be used
+	 * again.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Print the report to out every periodSeconds, on a daemon thread, until
+	 * stopDump is called.
+	 */
+	public synchronized void startDump(final PrintStream out,
+			long periodSeconds) {
+		stopDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "parse-stats-dump");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				out.print("Parse stats:\n" + getReport());
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopDump() {
+		if (dumper != null) {
+			dumper.shutdown();
+			dumper = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,39 @@
+package nlp.parser;
+
+/**
+ * The JMX view of ParseStats, totals over all sentence lengths.
+ */
+public interface ParseStatsMBean {
+	long getSentences();
+
+	long getAbortedSentences();
+
+	long getFallbacks();
+
+	long getCells();
+
+	long getEdges();
+
+	long getBinaryRuleApplications();
+
+	long getUnaryRuleApplications();
+
+	long getPrunedEdges();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+
+	/**
+	 * The text report of every sentence length bin.
+	 */
+	String getReport();
+
+	void reset();
+}
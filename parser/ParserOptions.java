@@ -0,0 +1,158 @@
+package nlp.parser;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import nlp.ling.Tree;
+
+/**
+ * Builds the array chart parsers of the command line tools from their
+ * options, so that PCFGParserTester and ParseServer take the same ones. The
+ * options are read from a map of CommandLineUtils.simpleCommandLineParser.
+ */
+public class ParserOptions {
+	/**
+	 * The options of the array chart engine; any of them implies using it.
+	 */
+	public static final String[] ARRAY_CHART_OPTIONS = new String[] {
+			"-array", "-c2f", "-beam", "-beamRatio", "-parallel", "-log",
+			"-agenda", "-astar", "-budgetMs", "-budgetEdges", "-stats" };
+
+	public static boolean hasArrayChartOption(Map<String, String> argMap) {
+		for (String option : ARRAY_CHART_OPTIONS) {
+			if (argMap.containsKey(option))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wrap a trained CKY parser into the array chart engine, configured by
+	 * the command line: -c2f threshold (coarse-to-fine, tester model only),
+	 * -beam size, -beamRatio ratio, -parallel minLength (on the common
+	 * ForkJoinPool) and -log, or -agenda (best-first) and -astar (A* on the
+	 * base state projection). -stats [seconds] records ParseStats, registered
+	 * over JMX under the given name and printed every given number of
+	 * seconds.
+	 */
+	public static ArrayCKYParser makeArrayParser(CKYParser model,
+			Map<String, String> argMap, String name) {
+		ArrayCKYParser parser;
+		if (argMap.containsKey("-agenda") || argMap.containsKey("-astar"))
+			parser = new AgendaParser(model, argMap.containsKey("-astar"));
+		else if (argMap.containsKey("-c2f") && model instanceof CKYParserTester)
+			parser = new CoarseToFineParser((CKYParserTester) model,
+					Double.parseDouble(argMap.get("-c2f")));
+		else
+			parser = new ArrayCKYParser(model);
+		return configureArrayParser(parser, argMap, name);
+	}
+
+	/**
+	 * Load a model written by PCFGParserTester -saveModel into the array chart
+	 * engine, configured like makeArrayParser.
+	 */
+	public static ArrayCKYParser loadArrayParser(String fileName,
+			Map<String, String> argMap, String name) {
+		System.out.print("Loading model from " + fileName + " ... ");
+		ModelSnapshot snapshot;
+		try {
+			snapshot = ModelSnapshot.read(fileName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		System.out.println("done.");
+		ArrayCKYParser parser;
+		if (argMap.containsKey("-agenda") || argMap.containsKey("-astar"))
+			parser = new AgendaParser(snapshot.getGrammar(),
+					snapshot.getLexicon(), snapshot.getUnaryClosure(),
+					snapshot.getRoot(), argMap.containsKey("-astar"));
+		else if (argMap.containsKey("-c2f") && snapshot.hasBaseModel())
+			parser = snapshot.buildCoarseToFineParser(Double.parseDouble(argMap
+					.get("-c2f")));
+		else
+			parser = snapshot.buildParser();
+		return configureArrayParser(parser, argMap, name);
+	}
+
+	static ArrayCKYParser configureArrayParser(ArrayCKYParser parser,
+			Map<String, String> argMap, String name) {
+		// the common pool is shared by all parsers, so a seed sweep does not
+		// start a pool per case
+		if (argMap.containsKey("-parallel"))
+			parser.setParallel(ForkJoinPool.commonPool(),
+					Integer.parseInt(argMap.get("-parallel")));
+		int beamSize = Integer.MAX_VALUE;
+		double beamRatio = 0.0;
+		if (argMap.containsKey("-beam"))
+			beamSize = Integer.parseInt(argMap.get("-beam"));
+		if (argMap.containsKey("-beamRatio"))
+			beamRatio = Double.parseDouble(argMap.get("-beamRatio"));
+		parser.setBeam(beamSize, beamRatio);
+		if (argMap.containsKey("-log"))
+			parser.setLogSpace(true);
+		if (argMap.containsKey("-stats")) {
+			ParseStats stats = new ParseStats();
+			stats.register(name);
+			if (argMap.get("-stats") != null)
+				stats.startDump(System.out, Long.parseLong(argMap.get("-stats")));
+			parser.setStats(stats);
+		}
+		return parser;
+	}
+
+	/**
+	 * Bound the work per sentence of an array chart parser if asked to:
+	 * -budgetMs and -budgetEdges. Sentences over budget are parsed by
+	 * BaselineParser with -fallback baseline, which needs the training trees,
+	 * and otherwise by the same model with a beam of -fallbackBeam states per
+	 * cell.
+	 */
+	public static Parser makeFallbackParser(Parser parser,
+			List<Tree<String>> trainTrees, Map<String, String> argMap) {
+		if (!(parser instanceof ArrayCKYParser)
+				|| !(argMap.containsKey("-budgetMs") || argMap
+						.containsKey("-budgetEdges")))
+			return parser;
+		ArrayCKYParser arrayParser = (ArrayCKYParser) parser;
+		long maxMillis = Long.MAX_VALUE;
+		long maxEdges = Long.MAX_VALUE;
+		if (argMap.containsKey("-budgetMs"))
+			maxMillis = Long.parseLong(argMap.get("-budgetMs"));
+		if (argMap.containsKey("-budgetEdges"))
+			maxEdges = Long.parseLong(argMap.get("-budgetEdges"));
+		arrayParser.setBudget(maxMillis, maxEdges);
+		Parser fallback;
+		if ("baseline".equalsIgnoreCase(argMap.get("-fallback"))) {
+			if (trainTrees == null)
+				throw new RuntimeException(
+						"-fallback baseline needs training trees");
+			fallback = new BaselineParser(trainTrees);
+		} else {
+			ArrayCKYParser pruned = new ArrayCKYParser(arrayParser);
+			int beamSize = 5;
+			if (argMap.containsKey("-fallbackBeam"))
+				beamSize = Integer.parseInt(argMap.get("-fallbackBeam"));
+			pruned.setBeam(beamSize, 0.0);
+			fallback = pruned;
+		}
+		return new FallbackParser(arrayParser, fallback);
+	}
+
+	/**
+	 * Put a parse cache in front of the parser if asked to: -cache maxEntries
+	 * and optionally -cacheMB, the cap on its estimated size.
+	 */
+	public static Parser makeCachingParser(Parser parser,
+			Map<String, String> argMap) {
+		if (!argMap.containsKey("-cache"))
+			return parser;
+		long maxBytes = Long.MAX_VALUE;
+		if (argMap.containsKey("-cacheMB"))
+			maxBytes = Long.parseLong(argMap.get("-cacheMB")) * 1024 * 1024;
+		return new CachingParser(parser, new ParseCache(
+				Integer.parseInt(argMap.get("-cache")), maxBytes));
+	}
+}
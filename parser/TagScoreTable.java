@@ -0,0 +1,126 @@
+package nlp.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nlp.util.Counter;
+import nlp.util.Indexer;
+
+/**
+ * The scores of Lexicon.scoreTagging precomputed over tag ids, so that chart
+ * initialization only visits the tags a word can take. Tags are numbered in
+ * the order of Lexicon.getAllTags(). A known word keeps its seen tags as a
+ * sparse array of (tag id, score). A rare word also gives every other tag the
+ * same smoothing share, which is computed from its count when asked. Unknown
+ * words share one score vector. The scores are bit for bit those of
+ * scoreTagging.
+ */
+public class TagScoreTable {
+	String[] tags;
+	// P(tag), computed as scoreTagging does
+	double[] tagProbabilities;
+	Map<String, WordScores> wordScores = new HashMap<String, WordScores>();
+	WordScores unknownScores;
+
+	static class WordScores {
+		// seen tags in id order, and their scores
+		int[] tags;
+		double[] scores;
+		// the count of a rare word plus one, which smooths the unseen tags;
+		// 0 if the unseen tags score 0
+		double smoothedCount;
+	}
+
+	public TagScoreTable(Lexicon lexicon) {
+		tags = lexicon.getAllTags().toArray(new String[0]);
+		Indexer<String> tagIndexer = new Indexer<String>(Arrays.asList(tags));
+		Counter<String> tagCounter = lexicon.tagCounter;
+		tagProbabilities = new double[tags.length];
+		for (int t = 0; t < tags.length; t++) {
+			tagProbabilities[t] = tagCounter.getCount(tags[t])
+					/ tagCounter.totalCount();
+		}
+		for (String word : lexicon.wordToTagCounters.keySet()) {
+			Counter<String> counter = lexicon.wordToTagCounters
+					.getCounter(word);
+			int[] wordTags = new int[counter.size()];
+			int n = 0;
+			for (String tag : counter.keySet()) {
+				int t = tagIndexer.indexOf(tag);
+				if (t >= 0)
+					wordTags[n++] = t;
+			}
+			WordScores scores = new WordScores();
+			scores.tags = Arrays.copyOf(wordTags, n);
+			Arrays.sort(scores.tags);
+			scores.scores = new double[n];
+			for (int i = 0; i < n; i++) {
+				scores.scores[i] = lexicon.scoreTagging(word,
+						tags[scores.tags[i]]);
+			}
+			double count = counter.totalCount();
+			if (count < Lexicon.RARE_WORD_COUNT)
+				scores.smoothedCount = count + 1.0;
+			wordScores.put(word, scores);
+		}
+		// an unknown word is a rare word of count 0 with no seen tags
+		unknownScores = new WordScores();
+		unknownScores.tags = new int[tags.length];
+		unknownScores.scores = new double[tags.length];
+		for (int t = 0; t < tags.length; t++) {
+			unknownScores.tags[t] = t;
+			unknownScores.scores[t] = smoothedScore(t, 1.0);
+		}
+	}
+
+	public String[] getTags() {
+		return tags;
+	}
+
+	public int getNumTags() {
+		return tags.length;
+	}
+
+	/**
+	 * Put the ids and scores of the tags the word can take, in id order, into
+	 * the given arrays, which must hold getNumTags() entries. Tags scoring 0
+	 * are left out. Returns the number of tags put.
+	 */
+	public int getTagScores(String word, int[] tagIds, double[] scores) {
+		WordScores known = wordScores.get(word);
+		if (known == null)
+			known = unknownScores;
+		int n = 0;
+		if (known.smoothedCount == 0) {
+			for (int i = 0; i < known.tags.length; i++) {
+				if (known.scores[i] != 0) {
+					tagIds[n] = known.tags[i];
+					scores[n++] = known.scores[i];
+				}
+			}
+			return n;
+		}
+		int next = 0;
+		for (int t = 0; t < tags.length; t++) {
+			double score;
+			if (next < known.tags.length && known.tags[next] == t)
+				score = known.scores[next++];
+			else
+				score = smoothedScore(t, known.smoothedCount);
+			if (score != 0) {
+				tagIds[n] = t;
+				scores[n++] = score;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * scoreTagging of a tag the word was never seen with, for a rare word.
+	 */
+	private double smoothedScore(int tag, double smoothedCount) {
+		double p_tag = tagProbabilities[tag];
+		return (p_tag / smoothedCount) / p_tag;
+	}
+}
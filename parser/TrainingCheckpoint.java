@@ -0,0 +1,115 @@
+package nlp.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import nlp.util.Indexer;
+
+/**
+ * The state of split-merge training at the start of an EM iteration: the
+ * cycle, the number of EM iterations done in it, the random seed the cycle
+ * was split with, the grammar and lexicon the cycle started from and, after
+ * the first iteration, the current split grammar and lexicon. Splitting only
+ * draws from a random generator seeded at the start of the cycle, so the
+ * seed and the starting grammar restore it exactly.
+ *
+ * Uses the file format of ModelSnapshot with its own magic number.
+ */
+public class TrainingCheckpoint {
+	static final int MAGIC = 0x4e4c5043;
+
+	int cycle;
+	int iteration;
+	long seed;
+	long splitDigest;
+	Grammar cycleGrammar;
+	SimpleLexicon cycleLexicon;
+	// null before the first EM iteration of the cycle
+	Grammar grammar;
+	SimpleLexicon lexicon;
+
+	public TrainingCheckpoint(int cycle, int iteration, long seed,
+			long splitDigest, Grammar cycleGrammar, SimpleLexicon cycleLexicon,
+			Grammar grammar, SimpleLexicon lexicon) {
+		this.cycle = cycle;
+		this.iteration = iteration;
+		this.seed = seed;
+		this.splitDigest = splitDigest;
+		this.cycleGrammar = cycleGrammar;
+		this.cycleLexicon = cycleLexicon;
+		this.grammar = grammar;
+		this.lexicon = lexicon;
+	}
+
+	public int getCycle() {
+		return cycle;
+	}
+
+	public int getIteration() {
+		return iteration;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public long getSplitDigest() {
+		return splitDigest;
+	}
+
+	public boolean isCycleStart() {
+		return grammar == null;
+	}
+
+	/**
+	 * The file name of the checkpoint of a cycle and iteration in a
+	 * directory.
+	 */
+	public static String getFileName(String directory, int cycle,
+			int iteration) {
+		return new File(directory, String.format("checkpoint-%d-%02d.bin",
+				cycle, iteration)).getPath();
+	}
+
+	public void write(String fileName) throws IOException {
+		Indexer<String> symbols = new Indexer<String>();
+		ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bodyBytes);
+		body.writeInt(cycle);
+		body.writeInt(iteration);
+		body.writeLong(seed);
+		body.writeLong(splitDigest);
+		ModelSnapshot.writeGrammar(body, cycleGrammar, symbols);
+		ModelSnapshot.writeLexicon(body, cycleLexicon, symbols);
+		body.writeBoolean(!isCycleStart());
+		if (!isCycleStart()) {
+			ModelSnapshot.writeGrammar(body, grammar, symbols);
+			ModelSnapshot.writeLexicon(body, lexicon, symbols);
+		}
+		body.flush();
+		ModelSnapshot.writeFile(fileName, MAGIC, symbols, bodyBytes);
+	}
+
+	public static TrainingCheckpoint read(String fileName) throws IOException {
+		ByteBuffer in = ModelSnapshot.mapFile(fileName, MAGIC);
+		String[] symbols = ModelSnapshot.readSymbols(in);
+		int cycle = in.getInt();
+		int iteration = in.getInt();
+		long seed = in.getLong();
+		long splitDigest = in.getLong();
+		Grammar cycleGrammar = ModelSnapshot.readGrammar(in, symbols);
+		SimpleLexicon cycleLexicon = (SimpleLexicon) ModelSnapshot
+				.readLexicon(in, symbols);
+		Grammar grammar = null;
+		SimpleLexicon lexicon = null;
+		if (in.get() != 0) {
+			grammar = ModelSnapshot.readGrammar(in, symbols);
+			lexicon = (SimpleLexicon) ModelSnapshot.readLexicon(in, symbols);
+		}
+		return new TrainingCheckpoint(cycle, iteration, seed, splitDigest,
+				cycleGrammar, cycleLexicon, grammar, lexicon);
+	}
+}
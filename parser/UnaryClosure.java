@@ -1,7 +1,9 @@
 package nlp.parser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -9,7 +11,7 @@ import java.util.Map;
 import java.util.Set;
 
 import nlp.util.CollectionUtils;
-import nlp.util.Counter;
+import nlp.util.Indexer;
 
 /**
  * Calculates and provides accessors for the REFLEXIVE, TRANSITIVE closure of
@@ -17,11 +19,34 @@ import nlp.util.Counter;
  * zero or more unary rules in the original grammar. Use the getPath() method to
  * retrieve the full sequence of symbols (from parent to child) which support
  * that path.
+ *
+ * The closure is computed max-product Floyd-Warshall style on a dense matrix
+ * over integer state ids, and kept in primitive arrays: closed rules sorted by
+ * (child, parent), indexed by child and by parent like CompiledGrammar, and a
+ * path table holding the intermediate states of every closed rule.
  */
 public class UnaryClosure {
+	Indexer<String> stateIndexer = new Indexer<String>();
+	int numStates;
+	// closed rules, sorted by (child, parent); the rules of child c are
+	// [childStarts[c], childStarts[c+1])
+	int[] parents;
+	int[] children;
+	double[] scores;
+	int[] childStarts;
+	// rule ids ordered by parent, with the same kind of start offsets
+	int[] byParent;
+	int[] parentStarts;
+	// the states strictly between the parent and child of rule r are
+	// pathStates[pathStarts[r]] .. pathStates[pathStarts[r+1]-1]
+	int[] pathStarts;
+	int[] pathStates;
+	UnaryRule[] closedRules;
 	Map<String, List<UnaryRule>> closedUnaryRulesByChild = new HashMap<String, List<UnaryRule>>();
 	Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
-	Map<UnaryRule, List<String>> pathMap = new HashMap<UnaryRule, List<String>>();
+
+	// an entry of the closure matrix without any path
+	private static final double ABSENT = Double.NEGATIVE_INFINITY;
 
 	public List<UnaryRule> getClosedUnaryRulesByChild(String child) {
 		return CollectionUtils.getValueList(closedUnaryRulesByChild, child);
@@ -32,7 +57,53 @@ public class UnaryClosure {
 	}
 
 	public List<String> getPath(UnaryRule unaryRule) {
-		return pathMap.get(unaryRule);
+		int rule = indexOfRule(stateIndexer.indexOf(unaryRule.getParent()),
+				stateIndexer.indexOf(unaryRule.getChild()));
+		return rule < 0 ? null : getPath(rule);
+	}
+
+	/**
+	 * The path of a closed rule id, from parent to child. A self loop without
+	 * intermediate states has the one state as its path.
+	 */
+	public List<String> getPath(int rule) {
+		List<String> path = new ArrayList<String>(pathStarts[rule + 1]
+				- pathStarts[rule] + 2);
+		path.add(stateIndexer.get(parents[rule]));
+		for (int s = pathStarts[rule]; s < pathStarts[rule + 1]; s++) {
+			path.add(stateIndexer.get(pathStates[s]));
+		}
+		if (path.size() > 1 || parents[rule] != children[rule])
+			path.add(stateIndexer.get(children[rule]));
+		return path;
+	}
+
+	/**
+	 * Returns the id of the closed rule, or -1 if the closure does not have
+	 * it.
+	 */
+	public int indexOfRule(int parent, int child) {
+		if (parent < 0 || child < 0)
+			return -1;
+		int low = childStarts[child], high = childStarts[child + 1] - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (parents[middle] < parent)
+				low = middle + 1;
+			else if (parents[middle] > parent)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	public Indexer<String> getStateIndexer() {
+		return stateIndexer;
+	}
+
+	public int getNumRules() {
+		return parents.length;
 	}
 
 	public String toString() {
@@ -51,133 +122,223 @@ public class UnaryClosure {
 	}
 
 	public UnaryClosure(Collection<UnaryRule> unaryRules) {
-		Map<UnaryRule, List<String>> closureMap = computeUnaryClosure(unaryRules);
-		for (UnaryRule unaryRule : closureMap.keySet()) {
-			addUnary(unaryRule, closureMap.get(unaryRule));
+		// states are numbered in hash set order, the order in which the
+		// closure has always relaxed them, so ties between equally good paths
+		// resolve as they did before
+		Set<String> states = new HashSet<String>();
+		for (UnaryRule unaryRule : unaryRules) {
+			states.add(unaryRule.getParent());
+			states.add(unaryRule.getChild());
+		}
+		for (String state : states) {
+			stateIndexer.add(state);
 		}
+		numStates = stateIndexer.size();
+		computeUnaryClosure(unaryRules);
+		System.out.println("UnaryClosure SIZE: " + parents.length);
 	}
 
 	public UnaryClosure(Grammar grammar) {
 		this(grammar.getUnaryRules());
 	}
 
-	private void addUnary(UnaryRule unaryRule, List<String> path) {
-		CollectionUtils.addToValueList(closedUnaryRulesByChild,
-				unaryRule.getChild(), unaryRule);
-		CollectionUtils.addToValueList(closedUnaryRulesByParent,
-				unaryRule.getParent(), unaryRule);
-		pathMap.put(unaryRule, path);
+	/**
+	 * A closure of already closed rules and their paths, used when loading a
+	 * ModelSnapshot.
+	 */
+	UnaryClosure(List<UnaryRule> closedUnaryRules, List<List<String>> paths) {
+		for (UnaryRule rule : closedUnaryRules) {
+			stateIndexer.add(rule.getParent());
+			stateIndexer.add(rule.getChild());
+		}
+		numStates = stateIndexer.size();
+		int n = closedUnaryRules.size();
+		final int[] ruleParents = new int[n], ruleChildren = new int[n];
+		for (int r = 0; r < n; r++) {
+			ruleParents[r] = stateIndexer.indexOf(closedUnaryRules.get(r)
+					.getParent());
+			ruleChildren[r] = stateIndexer.indexOf(closedUnaryRules.get(r)
+					.getChild());
+		}
+		Integer[] order = new Integer[n];
+		for (int r = 0; r < n; r++) {
+			order[r] = r;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (ruleChildren[a] != ruleChildren[b])
+					return ruleChildren[a] < ruleChildren[b] ? -1 : 1;
+				return ruleParents[a] < ruleParents[b] ? -1
+						: (ruleParents[a] == ruleParents[b] ? 0 : 1);
+			}
+		});
+		parents = new int[n];
+		children = new int[n];
+		scores = new double[n];
+		pathStarts = new int[n + 1];
+		IntList intermediates = new IntList();
+		for (int r = 0; r < n; r++) {
+			parents[r] = ruleParents[order[r]];
+			children[r] = ruleChildren[order[r]];
+			scores[r] = closedUnaryRules.get(order[r]).getScore();
+			List<String> path = paths.get(order[r]);
+			for (int s = 1; s < path.size() - 1; s++) {
+				intermediates.add(stateIndexer.indexOf(path.get(s)));
+			}
+			pathStarts[r + 1] = intermediates.size;
+		}
+		pathStates = intermediates.toArray();
+		indexRules();
 	}
 
-	private static Map<UnaryRule, List<String>> computeUnaryClosure(
-			Collection<UnaryRule> unaryRules) {
-
-		Map<UnaryRule, String> intermediateStates = new HashMap<UnaryRule, String>();
-		Counter<UnaryRule> pathCosts = new Counter<UnaryRule>();
-		Map<String, List<UnaryRule>> closedUnaryRulesByChild = new HashMap<String, List<UnaryRule>>();
-		Map<String, List<UnaryRule>> closedUnaryRulesByParent = new HashMap<String, List<UnaryRule>>();
-
-		Set<String> states = new HashSet<String>();
-
+	/**
+	 * Max-product Floyd-Warshall over a dense numStates x numStates matrix.
+	 * Relaxing through state k only visits the present entries of column k
+	 * and row k, so sparse unary graphs stay cheap. Among equally good paths
+	 * the one found last wins.
+	 */
+	private void computeUnaryClosure(Collection<UnaryRule> unaryRules) {
+		int n = numStates;
+		double[] best = new double[n * n];
+		// the intermediate state of the best path, -1 for a direct rule
+		int[] via = new int[n * n];
+		Arrays.fill(best, ABSENT);
+		Arrays.fill(via, -1);
 		for (UnaryRule unaryRule : unaryRules) {
-			relax(pathCosts, intermediateStates, closedUnaryRulesByChild,
-					closedUnaryRulesByParent, unaryRule, null,
-					unaryRule.getScore());
-			states.add(unaryRule.getParent());
-			states.add(unaryRule.getChild());
+			int cell = stateIndexer.indexOf(unaryRule.getParent()) * n
+					+ stateIndexer.indexOf(unaryRule.getChild());
+			if (!(best[cell] > unaryRule.getScore())) {
+				best[cell] = unaryRule.getScore();
+				via[cell] = -1;
+			}
 		}
 
-		for (String intermediateState : states) {
-			List<UnaryRule> incomingRules = closedUnaryRulesByChild
-					.get(intermediateState);
-			List<UnaryRule> outgoingRules = closedUnaryRulesByParent
-					.get(intermediateState);
-			if (incomingRules == null || outgoingRules == null)
-				continue;
-			for (UnaryRule incomingRule : incomingRules) {
-				for (UnaryRule outgoingRule : outgoingRules) {
-					UnaryRule rule = new UnaryRule(incomingRule.getParent(),
-							outgoingRule.getChild());
-					double newScore = pathCosts.getCount(incomingRule)
-							* pathCosts.getCount(outgoingRule);
-					relax(pathCosts, intermediateStates,
-							closedUnaryRulesByChild, closedUnaryRulesByParent,
-							rule, intermediateState, newScore);
+		int[] incoming = new int[n], outgoing = new int[n];
+		for (int k = 0; k < n; k++) {
+			int numIncoming = 0, numOutgoing = 0;
+			for (int s = 0; s < n; s++) {
+				if (s == k)
+					continue;
+				if (best[s * n + k] != ABSENT)
+					incoming[numIncoming++] = s;
+				if (best[k * n + s] != ABSENT)
+					outgoing[numOutgoing++] = s;
+			}
+			for (int a = 0; a < numIncoming; a++) {
+				int parent = incoming[a];
+				double parentScore = best[parent * n + k];
+				for (int b = 0; b < numOutgoing; b++) {
+					int cell = parent * n + outgoing[b];
+					double score = parentScore * best[k * n + outgoing[b]];
+					if (!(best[cell] > score)) {
+						best[cell] = score;
+						via[cell] = k;
+					}
 				}
 			}
 		}
 
-		for (String state : states) {
-			UnaryRule selfLoopRule = new UnaryRule(state, state);
-			relax(pathCosts, intermediateStates, closedUnaryRulesByChild,
-					closedUnaryRulesByParent, selfLoopRule, null, 1.0);
+		for (int s = 0; s < n; s++) {
+			int cell = s * n + s;
+			if (!(best[cell] > 1.0)) {
+				best[cell] = 1.0;
+				via[cell] = -1;
+			}
 		}
 
-		Map<UnaryRule, List<String>> closureMap = new HashMap<UnaryRule, List<String>>();
-
-		for (UnaryRule unaryRule : pathCosts.keySet()) {
-			unaryRule.setScore(pathCosts.getCount(unaryRule));
-			List<String> path = extractPath(unaryRule, intermediateStates);
-			closureMap.put(unaryRule, path);
+		// read the closed rules out child by child, which sorts them by
+		// (child, parent)
+		int numRules = 0;
+		for (double score : best) {
+			if (score != ABSENT)
+				numRules++;
 		}
-
-		System.out.println("UnaryClosure SIZE: " + closureMap.keySet().size());
-
-		return closureMap;
-
-	}
-
-	private static List<String> extractPath(UnaryRule unaryRule,
-			Map<UnaryRule, String> intermediateStates) {
-		List<String> path = new ArrayList<String>();
-		path.add(unaryRule.getParent());
-		String intermediateState = intermediateStates.get(unaryRule);
-		if (intermediateState != null) {
-			List<String> parentPath = extractPath(
-					new UnaryRule(unaryRule.getParent(), intermediateState),
-					intermediateStates);
-			for (int i = 1; i < parentPath.size() - 1; i++) {
-				String state = parentPath.get(i);
-				path.add(state);
-			}
-			path.add(intermediateState);
-			List<String> childPath = extractPath(new UnaryRule(
-					intermediateState, unaryRule.getChild()),
-					intermediateStates);
-			for (int i = 1; i < childPath.size() - 1; i++) {
-				String state = childPath.get(i);
-				path.add(state);
+		parents = new int[numRules];
+		children = new int[numRules];
+		scores = new double[numRules];
+		pathStarts = new int[numRules + 1];
+		IntList intermediates = new IntList();
+		int r = 0;
+		for (int child = 0; child < n; child++) {
+			for (int parent = 0; parent < n; parent++) {
+				if (best[parent * n + child] == ABSENT)
+					continue;
+				parents[r] = parent;
+				children[r] = child;
+				scores[r] = best[parent * n + child];
+				addIntermediates(parent, child, via, intermediates);
+				pathStarts[++r] = intermediates.size;
 			}
 		}
-		if (path.size() == 1
-				&& unaryRule.getParent().equals(unaryRule.getChild()))
-			return path;
-		path.add(unaryRule.getChild());
-		return path;
+		pathStates = intermediates.toArray();
+		indexRules();
 	}
 
-	private static void relax(Counter<UnaryRule> pathCosts,
-			Map<UnaryRule, String> intermediateStates,
-			Map<String, List<UnaryRule>> closedUnaryRulesByChild,
-			Map<String, List<UnaryRule>> closedUnaryRulesByParent,
-			UnaryRule unaryRule, String intermediateState, double newScore) {
-		if (intermediateState != null
-				&& (intermediateState.equals(unaryRule.getParent()) || intermediateState
-						.equals(unaryRule.getChild())))
-			return;
-		boolean isNewRule = !pathCosts.containsKey(unaryRule);
-		double oldScore = (isNewRule ? Double.NEGATIVE_INFINITY : pathCosts
-				.getCount(unaryRule));
-		if (oldScore > newScore)
+	/**
+	 * Append the states strictly between parent and child on their best path.
+	 */
+	private void addIntermediates(int parent, int child, int[] via,
+			IntList intermediates) {
+		int intermediate = via[parent * numStates + child];
+		if (intermediate < 0)
 			return;
-		if (isNewRule) {
+		addIntermediates(parent, intermediate, via, intermediates);
+		intermediates.add(intermediate);
+		addIntermediates(intermediate, child, via, intermediates);
+	}
+
+	/**
+	 * Build the child and parent offsets of the sorted closed rules, and the
+	 * UnaryRule lists of the String accessors.
+	 */
+	private void indexRules() {
+		int n = parents.length;
+		childStarts = new int[numStates + 1];
+		parentStarts = new int[numStates + 1];
+		for (int r = 0; r < n; r++) {
+			childStarts[children[r] + 1]++;
+			parentStarts[parents[r] + 1]++;
+		}
+		for (int s = 0; s < numStates; s++) {
+			childStarts[s + 1] += childStarts[s];
+			parentStarts[s + 1] += parentStarts[s];
+		}
+		int[] next = Arrays.copyOf(parentStarts, numStates);
+		byParent = new int[n];
+		for (int r = 0; r < n; r++) {
+			byParent[next[parents[r]]++] = r;
+		}
+		closedRules = new UnaryRule[n];
+		for (int r = 0; r < n; r++) {
+			UnaryRule rule = new UnaryRule(stateIndexer.get(parents[r]),
+					stateIndexer.get(children[r]));
+			rule.setScore(scores[r]);
+			closedRules[r] = rule;
 			CollectionUtils.addToValueList(closedUnaryRulesByChild,
-					unaryRule.getChild(), unaryRule);
+					rule.getChild(), rule);
+		}
+		for (int r : byParent) {
 			CollectionUtils.addToValueList(closedUnaryRulesByParent,
-					unaryRule.getParent(), unaryRule);
+					closedRules[r].getParent(), closedRules[r]);
 		}
-		pathCosts.setCount(unaryRule, newScore);
-		intermediateStates.put(unaryRule, intermediateState);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * A growable int array for the path table.
+	 */
+	private static class IntList {
+		int[] values = new int[16];
+		int size;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package nlp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, safe to record into from many
+ * threads without locking. Buckets grow geometrically: every power of two is
+ * split into 8 buckets, so a percentile is off by at most 12.5%, and the
+ * whole range of a long fits in 512 counters. Percentiles report the upper
+ * bound of their bucket.
+ */
+public class LatencyHistogram {
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	AtomicLong count = new AtomicLong();
+	AtomicLong total = new AtomicLong();
+	AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long previous = max.get();
+		while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+			previous = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0.0 : total.get() / (double) n;
+	}
+
+	/**
+	 * The duration that the given fraction (0 to 1) of the recorded
+	 * durations does not exceed, 0 if nothing was recorded.
+	 */
+	public long getPercentileNanos(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int b = 0; b < counts.length(); b++) {
+			seen += counts.get(b);
+			if (seen >= rank && seen > 0)
+				return Math.min(upperBound(b), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Add the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int b = 0; b < counts.length(); b++) {
+			long c = other.counts.get(b);
+			if (c != 0)
+				counts.addAndGet(b, c);
+		}
+		count.addAndGet(other.count.get());
+		total.addAndGet(other.total.get());
+		long otherMax = other.max.get();
+		long previous = max.get();
+		while (otherMax > previous && !max.compareAndSet(previous, otherMax)) {
+			previous = max.get();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "n " + getCount() + ", mean " + millis(getMeanNanos())
+				+ " ms, p50 " + millis(getPercentileNanos(0.5)) + " ms, p90 "
+				+ millis(getPercentileNanos(0.9)) + " ms, p99 "
+				+ millis(getPercentileNanos(0.99)) + " ms, max "
+				+ millis(getMaxNanos()) + " ms";
+	}
+
+	private static String millis(double nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+}